@@ -0,0 +1,329 @@
+package io.mrarm.chatlib.android.storage;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.UUID;
+
+import io.mrarm.chatlib.android.storage.contract.MessagesContract;
+import io.mrarm.chatlib.dto.MessageInfo;
+import io.mrarm.chatlib.dto.MessageSenderInfo;
+
+import static org.junit.Assert.*;
+
+/**
+ * Upgrades hand made files of the older schema versions and checks the resulting schema and
+ * aggregate tables.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MessageFileMigratorTest {
+
+    private static final String CHANNEL = "#test";
+    private static final String COMPACTED_CHANNEL = "#compacted";
+    private static final int NORMAL = MessageInfo.MessageType.NORMAL.asInt();
+
+    private static final MessageSenderInfo ALICE = new MessageSenderInfo("alice", "a",
+            "a.example.com", null, UUID.randomUUID());
+    private static final MessageSenderInfo ALICE_RENAMED = new MessageSenderInfo("alice_", "a",
+            "a.example.com", null, ALICE.getUserUUID());
+    private static final MessageSenderInfo BOB = new MessageSenderInfo("bob", "b",
+            "b.example.com", null, UUID.randomUUID());
+
+    private File directory;
+    private SQLiteDatabase database;
+    private long day;
+    private long nextDay;
+
+    @Before
+    public void setUp() {
+        directory = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "migrator-test");
+        deleteDirectory(directory);
+        directory.mkdirs();
+        database = SQLiteDatabase.openOrCreateDatabase(new File(directory, "messages.db"), null);
+        day = getMillis(2024, 3, 5, 23, 30);
+        nextDay = getMillis(2024, 3, 6, 0, 10);
+    }
+
+    @After
+    public void tearDown() {
+        database.close();
+        deleteDirectory(directory);
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] children = directory.listFiles();
+        if (children != null) {
+            for (File child : children)
+                child.delete();
+        }
+        directory.delete();
+    }
+
+    private static long getMillis(int year, int month, int day, int hour, int minute) {
+        Calendar c = Calendar.getInstance();
+        c.clear();
+        c.set(year, month - 1, day, hour, minute);
+        return c.getTimeInMillis();
+    }
+
+    private void createChannel(String channel) {
+        database.execSQL("CREATE TABLE " +
+                MessagesContract.MessageEntry.getEscapedTableName(channel) + " (" +
+                MessagesContract.MessageEntry._ID + " INTEGER PRIMARY KEY," +
+                MessagesContract.MessageEntry.COLUMN_NAME_SENDER_DATA + " TEXT," +
+                MessagesContract.MessageEntry.COLUMN_NAME_SENDER_UUID + " BLOB," +
+                MessagesContract.MessageEntry.COLUMN_NAME_DATE + " INTEGER," +
+                MessagesContract.MessageEntry.COLUMN_NAME_TEXT + " TEXT," +
+                MessagesContract.MessageEntry.COLUMN_NAME_TYPE + " INTEGER," +
+                MessagesContract.MessageEntry.COLUMN_NAME_EXTRA_DATA + " TEXT)");
+    }
+
+    private void insertMessage(String channel, MessageSenderInfo sender, long date, String text,
+                               int type) {
+        database.execSQL("INSERT INTO " +
+                MessagesContract.MessageEntry.getEscapedTableName(channel) + " (" +
+                MessagesContract.MessageEntry.COLUMN_NAME_SENDER_DATA + "," +
+                MessagesContract.MessageEntry.COLUMN_NAME_SENDER_UUID + "," +
+                MessagesContract.MessageEntry.COLUMN_NAME_DATE + "," +
+                MessagesContract.MessageEntry.COLUMN_NAME_TEXT + "," +
+                MessagesContract.MessageEntry.COLUMN_NAME_TYPE + "," +
+                MessagesContract.MessageEntry.COLUMN_NAME_EXTRA_DATA + ") VALUES (?,?,?,?,?,?)",
+                new Object[]{MessageStorageHelper.serializeSenderInfo(sender),
+                        MessageStorageHelper.uuidToBytes(sender.getUserUUID()), date, text, type,
+                        "{}"});
+    }
+
+    /**
+     * Two messages of alice (who changes her nick on the second day) and two of bob, the last
+     * of which is deleted.
+     */
+    private void insertMessages(String channel) {
+        insertMessage(channel, ALICE, day, "hello", NORMAL);
+        insertMessage(channel, BOB, day + 60 * 1000, "hi there", NORMAL);
+        insertMessage(channel, ALICE_RENAMED, nextDay, "good night", NORMAL);
+        insertMessage(channel, BOB, nextDay + 60 * 1000, "removed",
+                MessageStorageHelper.TYPE_DELETED);
+    }
+
+    /**
+     * Builds a file as it was written by schema version 1: the channel tables only.
+     */
+    private void createVersion1() {
+        createChannel(CHANNEL);
+        insertMessages(CHANNEL);
+        database.setVersion(1);
+    }
+
+    /**
+     * Builds a file as it was written by schema version 3, with one of the channels compacted
+     * the same way SQLiteMessageStorageFile.compact does.
+     */
+    private void createVersion3() {
+        createVersion1();
+        database.execSQL(MessagesContract.BatchEntry.CREATE_TABLE);
+        database.execSQL(MessagesContract.BatchEntry.CREATE_INDEX);
+        database.execSQL(MessagesContract.CompressedBlockEntry.CREATE_TABLE);
+        database.execSQL(MessagesContract.CompressionDictionaryEntry.CREATE_TABLE);
+        createChannel(COMPACTED_CHANNEL);
+        insertMessages(COMPACTED_CHANNEL);
+
+        String tableName = MessagesContract.MessageEntry.getEscapedTableName(COMPACTED_CHANNEL);
+        List<String> samples = new ArrayList<>();
+        int[] ids = new int[4];
+        String[] senders = new String[4];
+        String[] texts = new String[4];
+        int count = 0;
+        Cursor cursor = database.rawQuery("SELECT " + MessagesContract.MessageEntry._ID + "," +
+                MessagesContract.MessageEntry.COLUMN_NAME_SENDER_DATA + "," +
+                MessagesContract.MessageEntry.COLUMN_NAME_TEXT + " FROM " + tableName +
+                " ORDER BY " + MessagesContract.MessageEntry._ID, null);
+        while (cursor.moveToNext()) {
+            ids[count] = cursor.getInt(0);
+            senders[count] = cursor.getString(1);
+            texts[count] = cursor.getString(2);
+            samples.add(senders[count]);
+            samples.add(texts[count]);
+            count++;
+        }
+        cursor.close();
+        byte[] dictionary = MessageTextCodec.trainDictionary(samples,
+                MessageTextCodec.MAX_DICTIONARY_SIZE);
+        MessageTextCodec codec = new MessageTextCodec(dictionary);
+        byte[] block;
+        try {
+            block = codec.encodeBlock(ids, senders, texts, count);
+        } finally {
+            codec.close();
+        }
+        database.execSQL("INSERT INTO " + MessagesContract.CompressionDictionaryEntry.TABLE_NAME +
+                " VALUES (?,?)", new Object[]{COMPACTED_CHANNEL, dictionary});
+        database.execSQL("INSERT INTO " + MessagesContract.CompressedBlockEntry.TABLE_NAME +
+                " (" + MessagesContract.CompressedBlockEntry.COLUMN_NAME_CHANNEL + "," +
+                MessagesContract.CompressedBlockEntry.COLUMN_NAME_DATA + ") VALUES (?,?)",
+                new Object[]{COMPACTED_CHANNEL, block});
+        cursor = database.rawQuery("SELECT last_insert_rowid()", null);
+        cursor.moveToFirst();
+        long blockId = cursor.getLong(0);
+        cursor.close();
+        database.execSQL("UPDATE " + tableName + " SET " +
+                MessagesContract.MessageEntry.COLUMN_NAME_SENDER_DATA + "=NULL," +
+                MessagesContract.MessageEntry.COLUMN_NAME_TEXT + "=?",
+                new Object[]{MessageStorageHelper.longToBytes(blockId)});
+        database.setVersion(3);
+    }
+
+    private boolean hasSchemaObject(String type, String name) {
+        Cursor cursor = database.rawQuery("SELECT 1 FROM sqlite_master WHERE type=? AND name=?",
+                new String[]{type, name});
+        boolean ret = cursor.moveToFirst();
+        cursor.close();
+        return ret;
+    }
+
+    private void assertCurrentSchema(String... channels) {
+        assertEquals(MessageFileMigrator.CURRENT_VERSION, database.getVersion());
+        for (String table : new String[]{MessagesContract.BatchEntry.TABLE_NAME,
+                MessagesContract.CompressedBlockEntry.TABLE_NAME,
+                MessagesContract.CompressionDictionaryEntry.TABLE_NAME,
+                MessagesContract.HourlyStatsEntry.TABLE_NAME,
+                MessagesContract.SenderStatsEntry.TABLE_NAME,
+                MessagesContract.DateOrderedChannelEntry.TABLE_NAME})
+            assertTrue(table, hasSchemaObject("table", table));
+        for (String channel : channels) {
+            String prefix = MessagesContract.MessageEntry.TABLE_NAME_PREFIX + channel;
+            assertTrue(hasSchemaObject("index", prefix + "_date"));
+            assertTrue(hasSchemaObject("index", prefix + "_sender"));
+        }
+    }
+
+    private List<String> queryRows(String query, String... args) {
+        List<String> ret = new ArrayList<>();
+        Cursor cursor = database.rawQuery(query, args);
+        while (cursor.moveToNext()) {
+            StringBuilder b = new StringBuilder();
+            for (int i = 0; i < cursor.getColumnCount(); i++) {
+                if (i > 0)
+                    b.append(' ');
+                b.append(cursor.getString(i));
+            }
+            ret.add(b.toString());
+        }
+        cursor.close();
+        return ret;
+    }
+
+    private static List<String> rows(String... rows) {
+        List<String> ret = new ArrayList<>();
+        for (String row : rows)
+            ret.add(row);
+        return ret;
+    }
+
+    /**
+     * Checks the aggregates of the messages added by insertMessages: the day and the hour both
+     * come from the message date, and the deleted message is not counted.
+     */
+    private void assertStats(String channel) {
+        long dayId = DateIdentifierHelper.getDateIdentifier(day);
+        long nextDayId = DateIdentifierHelper.getDateIdentifier(nextDay);
+        assertEquals(rows(dayId + " 23 " + NORMAL + " 2", nextDayId + " 0 " + NORMAL + " 1"),
+                queryRows("SELECT " +
+                        MessagesContract.HourlyStatsEntry.COLUMN_NAME_DATE_ID + "," +
+                        MessagesContract.HourlyStatsEntry.COLUMN_NAME_HOUR + "," +
+                        MessagesContract.HourlyStatsEntry.COLUMN_NAME_TYPE + "," +
+                        MessagesContract.HourlyStatsEntry.COLUMN_NAME_COUNT + " FROM " +
+                        MessagesContract.HourlyStatsEntry.TABLE_NAME + " WHERE " +
+                        MessagesContract.HourlyStatsEntry.COLUMN_NAME_CHANNEL + "=? ORDER BY " +
+                        MessagesContract.HourlyStatsEntry.COLUMN_NAME_DATE_ID + "," +
+                        MessagesContract.HourlyStatsEntry.COLUMN_NAME_HOUR, channel));
+        assertEquals(rows(dayId + " alice 1", dayId + " bob 1", nextDayId + " alice_ 1"),
+                queryRows("SELECT " +
+                        MessagesContract.SenderStatsEntry.COLUMN_NAME_DATE_ID + "," +
+                        MessagesContract.SenderStatsEntry.COLUMN_NAME_NICK + "," +
+                        MessagesContract.SenderStatsEntry.COLUMN_NAME_COUNT + " FROM " +
+                        MessagesContract.SenderStatsEntry.TABLE_NAME + " WHERE " +
+                        MessagesContract.SenderStatsEntry.COLUMN_NAME_CHANNEL + "=? ORDER BY " +
+                        MessagesContract.SenderStatsEntry.COLUMN_NAME_DATE_ID + "," +
+                        MessagesContract.SenderStatsEntry.COLUMN_NAME_NICK, channel));
+    }
+
+    @Test
+    public void upgradeFromVersion1() {
+        createVersion1();
+        new MessageFileMigrator().migrate(database);
+        assertCurrentSchema(CHANNEL);
+        assertStats(CHANNEL);
+    }
+
+    @Test
+    public void upgradeFromVersion3WithCompactedChannel() {
+        createVersion3();
+        new MessageFileMigrator().migrate(database);
+        assertCurrentSchema(CHANNEL, COMPACTED_CHANNEL);
+        assertStats(CHANNEL);
+        // the nicks of compacted rows come from the compressed blocks
+        assertStats(COMPACTED_CHANNEL);
+    }
+
+    @Test
+    public void resumeAfterInterruptedUpgrade() {
+        createVersion1();
+        MessageFileMigrator failing = new MessageFileMigrator() {
+            @Override
+            protected void onUpgrade(SQLiteDatabase database, int fromVersion) {
+                super.onUpgrade(database, fromVersion);
+                if (fromVersion + 1 == MessageFileMigrator.VERSION_DAILY_STATS)
+                    throw new IllegalStateException("interrupted");
+            }
+        };
+        try {
+            failing.migrate(database);
+            fail();
+        } catch (IllegalStateException ignored) {
+        }
+        // the steps before the failed one stay applied, the failed one is rolled back
+        assertEquals(MessageFileMigrator.VERSION_DAILY_STATS - 1, database.getVersion());
+        assertTrue(hasSchemaObject("index",
+                MessagesContract.MessageEntry.TABLE_NAME_PREFIX + CHANNEL + "_sender"));
+        assertFalse(hasSchemaObject("table", MessagesContract.HourlyStatsEntry.TABLE_NAME));
+
+        new MessageFileMigrator().migrate(database);
+        assertCurrentSchema(CHANNEL);
+        assertStats(CHANNEL);
+    }
+
+    @Test
+    public void upgradeRebuildsHourOnlyStats() {
+        createVersion1();
+        // the aggregate tables as created by versions 4 to 6, with counts that don't match
+        database.execSQL("CREATE TABLE " + MessagesContract.HourlyStatsEntry.TABLE_NAME +
+                " (channel TEXT, hour INTEGER, type INTEGER, count INTEGER," +
+                " PRIMARY KEY (channel, hour, type))");
+        database.execSQL("CREATE TABLE " + MessagesContract.SenderStatsEntry.TABLE_NAME +
+                " (channel TEXT, sender_uuid BLOB, nick TEXT, count INTEGER," +
+                " PRIMARY KEY (channel, sender_uuid))");
+        database.execSQL("INSERT INTO " + MessagesContract.HourlyStatsEntry.TABLE_NAME +
+                " VALUES (?,23,0,100)", new Object[]{CHANNEL});
+        database.execSQL("INSERT INTO " + MessagesContract.SenderStatsEntry.TABLE_NAME +
+                " VALUES (?,?,'old',100)", new Object[]{CHANNEL,
+                MessageStorageHelper.uuidToBytes(ALICE.getUserUUID())});
+        database.setVersion(MessageFileMigrator.VERSION_DAILY_STATS - 1);
+
+        new MessageFileMigrator().migrate(database);
+        assertEquals(MessageFileMigrator.CURRENT_VERSION, database.getVersion());
+        assertStats(CHANNEL);
+    }
+
+}
@@ -0,0 +1,199 @@
+package io.mrarm.chatlib.android.storage;
+
+import android.os.Looper;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import io.mrarm.chatlib.dto.MessageId;
+import io.mrarm.chatlib.dto.MessageInfo;
+import io.mrarm.chatlib.dto.MessageSenderInfo;
+
+import static org.junit.Assert.*;
+
+/**
+ * Streams a channel stored in three daily files, with a chunk size smaller than the number of
+ * messages per file so that both chunk and file boundaries are crossed.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MessageStreamTest {
+
+    private static final String CHANNEL = "#test";
+    private static final int DAY_COUNT = 3;
+    private static final int MESSAGES_PER_DAY = 3;
+    private static final int CHUNK_SIZE = 2;
+
+    private File directory;
+    private SQLiteMessageStorageApi api;
+    private final long[] dateIds = new long[DAY_COUNT];
+    private final List<String> texts = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        if (Looper.myLooper() == null)
+            Looper.prepare(); // the storage posts its delayed work to a Handler
+        directory = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "message-stream-test");
+        deleteDirectory(directory);
+        api = new SQLiteMessageStorageApi(directory);
+
+        MessageSenderInfo sender = new MessageSenderInfo("nick", "user", "host.example.com",
+                null, UUID.randomUUID());
+        for (int day = 0; day < DAY_COUNT; day++) {
+            Calendar c = Calendar.getInstance();
+            c.clear();
+            c.set(2024, Calendar.MARCH, 10 + day, 12, 0);
+            dateIds[day] = DateIdentifierHelper.getDateIdentifier(c.getTimeInMillis());
+            List<MessageInfo> messages = new ArrayList<>();
+            for (int i = 0; i < MESSAGES_PER_DAY; i++) {
+                String text = "Message " + day + "-" + i;
+                MessageInfo.Builder builder = new MessageInfo.Builder(sender, text,
+                        MessageInfo.MessageType.NORMAL);
+                builder.setDate(new Date(c.getTimeInMillis() + i * 60 * 1000));
+                messages.add(builder.build());
+                texts.add(text);
+            }
+            api.addMessagesToFile(dateIds[day], CHANNEL, messages);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        api.close();
+        deleteDirectory(directory);
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] children = directory.listFiles();
+        if (children != null) {
+            for (File child : children)
+                child.delete();
+        }
+        directory.delete();
+    }
+
+    private MessageStream openStream(MessageId after, boolean newer) {
+        return api.openMessageStream(CHANNEL, after, newer, null, CHUNK_SIZE);
+    }
+
+    private static List<String> readAll(MessageStream stream, List<MessageId> ids) {
+        List<String> ret = new ArrayList<>();
+        while (stream.moveToNext()) {
+            ret.add(stream.getMessage().getMessage());
+            if (ids != null)
+                ids.add(stream.getMessageId());
+        }
+        return ret;
+    }
+
+    private static List<String> reversed(List<String> list) {
+        List<String> ret = new ArrayList<>(list);
+        Collections.reverse(ret);
+        return ret;
+    }
+
+    /**
+     * Checks whether nothing references the file anymore. The file is closed if so, which only
+     * makes the next request for it open it again.
+     */
+    private boolean isReleased(long dateId) {
+        synchronized (api.files) {
+            SQLiteMessageStorageFile file = api.files.get(dateId);
+            return file == null || file.closeIfUnused();
+        }
+    }
+
+    private void assertHandOff(boolean newer) {
+        int first = newer ? 0 : DAY_COUNT - 1;
+        int second = newer ? 1 : DAY_COUNT - 2;
+        MessageStream stream = openStream(null, newer);
+        try {
+            for (int i = 0; i < MESSAGES_PER_DAY; i++)
+                assertTrue(stream.moveToNext());
+            assertFalse(isReleased(dateIds[first]));
+            // entering the next file releases the previous one
+            assertTrue(stream.moveToNext());
+            assertEquals(dateIds[second],
+                    ((SQLiteMessageStorageApi.MyMessageId) stream.getMessageId()).fileDateId);
+            assertTrue(isReleased(dateIds[first]));
+            assertFalse(isReleased(dateIds[second]));
+        } finally {
+            stream.close();
+        }
+        assertTrue(isReleased(dateIds[second]));
+    }
+
+    @Test
+    public void streamNewer() {
+        MessageStream stream = openStream(null, true);
+        assertEquals(texts, readAll(stream, null));
+        assertFalse(stream.moveToNext());
+    }
+
+    @Test
+    public void streamOlder() {
+        MessageStream stream = openStream(null, false);
+        assertEquals(reversed(texts), readAll(stream, null));
+        assertFalse(stream.moveToNext());
+    }
+
+    @Test
+    public void handOffNewer() {
+        assertHandOff(true);
+    }
+
+    @Test
+    public void handOffOlder() {
+        assertHandOff(false);
+    }
+
+    @Test
+    public void startFromMessageId() {
+        List<MessageId> ids = new ArrayList<>();
+        readAll(openStream(null, true), ids);
+        assertEquals(texts.size(), ids.size());
+        int start = MESSAGES_PER_DAY + 1; // the middle message of the second file
+        assertEquals(texts.subList(start + 1, texts.size()),
+                readAll(openStream(ids.get(start), true), null));
+        assertEquals(reversed(texts.subList(0, start)),
+                readAll(openStream(ids.get(start), false), null));
+    }
+
+    @Test
+    public void noCurrentMessage() {
+        MessageStream stream = openStream(null, true);
+        try {
+            stream.getMessage();
+            fail();
+        } catch (IllegalStateException ignored) {
+        }
+        readAll(stream, null);
+        try {
+            stream.getMessageId();
+            fail();
+        } catch (IllegalStateException ignored) {
+        }
+    }
+
+    @Test
+    public void closeStopsTheStream() {
+        MessageStream stream = openStream(null, true);
+        assertTrue(stream.moveToNext());
+        stream.close();
+        assertFalse(stream.moveToNext());
+        assertTrue(isReleased(dateIds[0]));
+    }
+
+}
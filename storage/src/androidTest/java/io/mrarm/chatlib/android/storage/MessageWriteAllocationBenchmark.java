@@ -0,0 +1,214 @@
+package io.mrarm.chatlib.android.storage;
+
+import android.app.Activity;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.Looper;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.Date;
+import java.util.UUID;
+
+import io.mrarm.chatlib.dto.MessageInfo;
+import io.mrarm.chatlib.dto.MessageSenderInfo;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+/**
+ * Measures the bytes allocated per message stored with SQLiteMessageStorageFile.addMessage and
+ * compares it with running the same SQLite statements directly, so that only the allocations
+ * done by the storage itself count against the budget.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MessageWriteAllocationBenchmark {
+
+    private static final String CHANNEL = "#test";
+    private static final int SENDER_COUNT = 16;
+    private static final int WARMUP_ITERATIONS = 500;
+    private static final int ITERATIONS = 2000;
+    private static final double MAX_OVERHEAD_BYTES = 16.0;
+
+    private File directory;
+    private SQLiteMessageStorageApi api;
+
+    @Before
+    public void setUp() {
+        if (Looper.myLooper() == null)
+            Looper.prepare(); // the storage posts its delayed work to a Handler
+        directory = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "allocation-benchmark");
+        deleteDirectory(directory);
+        api = new SQLiteMessageStorageApi(directory);
+    }
+
+    @After
+    public void tearDown() {
+        api.close();
+        deleteDirectory(directory);
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] children = directory.listFiles();
+        if (children != null) {
+            for (File child : children)
+                child.delete();
+        }
+        directory.delete();
+    }
+
+    private static MessageInfo[] createMessages() {
+        long now = System.currentTimeMillis();
+        MessageInfo[] ret = new MessageInfo[SENDER_COUNT];
+        for (int i = 0; i < SENDER_COUNT; i++) {
+            MessageSenderInfo sender = new MessageSenderInfo("nick" + i, "user" + i,
+                    "host" + i + ".example.com", null, UUID.randomUUID());
+            MessageInfo.Builder builder = new MessageInfo.Builder(sender, "Message text " + i,
+                    MessageInfo.MessageType.NORMAL);
+            builder.setDate(new Date(now));
+            ret[i] = builder.build();
+        }
+        return ret;
+    }
+
+    private static long measure(Runnable runnable, int iterations) {
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+        try {
+            for (int i = 0; i < iterations; i++)
+                runnable.run();
+            return Debug.getThreadAllocSize();
+        } finally {
+            Debug.stopAllocCounting();
+        }
+    }
+
+    private static boolean isAllocCountingSupported() {
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+        byte[] probe = new byte[1024];
+        long size = Debug.getThreadAllocSize();
+        Debug.stopAllocCounting();
+        return probe.length > 0 && size >= probe.length;
+    }
+
+    /**
+     * Runs the same statements as addMessage does for a message without a batch: the insert and
+     * the two aggregate upserts, in one transaction.
+     */
+    private static class RawInserter implements Runnable {
+
+        private final SQLiteDatabase database;
+        private final SQLiteStatement insert;
+        private final SQLiteStatement hourlyStats;
+        private final SQLiteStatement senderStats;
+        private final String sender = "nick!user@host.example.com";
+        private final byte[] senderUuid = MessageStorageHelper.uuidToBytes(UUID.randomUUID());
+        private final long date = System.currentTimeMillis();
+        private final long dateId = DateIdentifierHelper.getDateIdentifier(date);
+
+        RawInserter(File file) {
+            database = SQLiteDatabase.openOrCreateDatabase(file, null);
+            database.execSQL("CREATE TABLE messages (_id INTEGER PRIMARY KEY, sender_data TEXT," +
+                    "sender_uuid BLOB, date INTEGER, text TEXT, type INTEGER, extra TEXT)");
+            database.execSQL("CREATE TABLE hourly (channel TEXT, date_id INTEGER, hour INTEGER," +
+                    "type INTEGER, count INTEGER, PRIMARY KEY (channel, date_id, hour, type))");
+            database.execSQL("CREATE TABLE senders (channel TEXT, date_id INTEGER," +
+                    "sender_uuid BLOB, nick TEXT, count INTEGER," +
+                    "PRIMARY KEY (channel, date_id, sender_uuid))");
+            insert = database.compileStatement("INSERT INTO messages (sender_data,sender_uuid," +
+                    "date,text,type,extra) VALUES (?1,?2,?3,?4,?5,?6)");
+            hourlyStats = database.compileStatement("INSERT OR REPLACE INTO hourly VALUES " +
+                    "(?1,?2,?3,?4,COALESCE((SELECT count FROM hourly WHERE channel=?1 AND " +
+                    "date_id=?2 AND hour=?3 AND type=?4),0)+?5)");
+            senderStats = database.compileStatement("INSERT OR REPLACE INTO senders SELECT " +
+                    "?1,?2,?3,?4,COALESCE(MAX(count),0)+?5 FROM senders WHERE channel=?1 AND " +
+                    "date_id=?2 AND sender_uuid=?3");
+        }
+
+        @Override
+        public void run() {
+            insert.bindString(1, sender);
+            insert.bindBlob(2, senderUuid);
+            insert.bindLong(3, date);
+            insert.bindString(4, "Message text");
+            insert.bindLong(5, 0);
+            insert.bindString(6, "{}");
+            database.beginTransaction();
+            try {
+                insert.executeInsert();
+                insert.clearBindings();
+                hourlyStats.bindString(1, CHANNEL);
+                hourlyStats.bindLong(2, dateId);
+                hourlyStats.bindLong(3, 12);
+                hourlyStats.bindLong(4, 0);
+                hourlyStats.bindLong(5, 1);
+                hourlyStats.executeInsert();
+                hourlyStats.clearBindings();
+                senderStats.bindString(1, CHANNEL);
+                senderStats.bindLong(2, dateId);
+                senderStats.bindBlob(3, senderUuid);
+                senderStats.bindString(4, "nick");
+                senderStats.bindLong(5, 1);
+                senderStats.executeInsert();
+                senderStats.clearBindings();
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+        }
+
+        void close() {
+            insert.close();
+            hourlyStats.close();
+            senderStats.close();
+            database.close();
+        }
+
+    }
+
+    @Test
+    public void bytesAllocatedPerStoredMessage() {
+        assumeTrue(isAllocCountingSupported());
+
+        RawInserter raw = new RawInserter(new File(directory, "raw.db"));
+        long baseline;
+        try {
+            measure(raw, WARMUP_ITERATIONS);
+            baseline = measure(raw, ITERATIONS);
+        } finally {
+            raw.close();
+        }
+
+        MessageInfo[] messages = createMessages();
+        long dateId = DateIdentifierHelper.getDateIdentifier(System.currentTimeMillis());
+        SQLiteMessageStorageFile file = api.openFileForRead(dateId);
+        long allocated;
+        try {
+            int[] index = new int[1];
+            Runnable add = () -> file.addMessage(CHANNEL, messages[index[0]++ % SENDER_COUNT]);
+            measure(add, WARMUP_ITERATIONS);
+            allocated = measure(add, ITERATIONS);
+        } finally {
+            file.removeReference();
+        }
+
+        double perMessage = (double) allocated / ITERATIONS;
+        double baselinePerMessage = (double) baseline / ITERATIONS;
+        Bundle results = new Bundle();
+        results.putDouble("bytes_per_message", perMessage);
+        results.putDouble("sqlite_bytes_per_message", baselinePerMessage);
+        InstrumentationRegistry.getInstrumentation().sendStatus(Activity.RESULT_OK, results);
+        assertTrue(perMessage <= baselinePerMessage + MAX_OVERHEAD_BYTES);
+    }
+
+}
@@ -0,0 +1,45 @@
+package io.mrarm.chatlib.android.storage;
+
+import java.util.Arrays;
+
+/**
+ * A fixed size Bloom filter over 64-bit hashes, using double hashing to derive the probes.
+ */
+class BloomFilter {
+
+    private final long[] bits;
+    private final int bitCount;
+    private final int hashCount;
+
+    BloomFilter(int bitCount, int hashCount) {
+        this.bits = new long[(bitCount + 63) / 64];
+        this.bitCount = bits.length * 64;
+        this.hashCount = hashCount;
+    }
+
+    private int getBitIndex(long hash, int i) {
+        int h = (int) hash + i * (int) (hash >>> 32);
+        return (h & Integer.MAX_VALUE) % bitCount;
+    }
+
+    void add(long hash) {
+        for (int i = 0; i < hashCount; i++) {
+            int bit = getBitIndex(hash, i);
+            bits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    boolean mightContain(long hash) {
+        for (int i = 0; i < hashCount; i++) {
+            int bit = getBitIndex(hash, i);
+            if ((bits[bit >>> 6] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    void clear() {
+        Arrays.fill(bits, 0);
+    }
+
+}
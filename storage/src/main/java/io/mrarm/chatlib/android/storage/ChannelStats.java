@@ -0,0 +1,155 @@
+package io.mrarm.chatlib.android.storage;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import io.mrarm.chatlib.dto.MessageInfo;
+
+/**
+ * Activity statistics of a channel over a date range, computed from the summary of the
+ * aggregate tables of the daily files. Messages are counted on the day and hour they were sent.
+ * Deleted messages are not counted.
+ */
+public class ChannelStats {
+
+    private final long messageCount;
+    private final SortedMap<Date, Long> dailyCounts;
+    private final long[] hourlyCounts;
+    private final Map<MessageInfo.MessageType, Long> typeCounts;
+    private final List<SenderStats> topSenders;
+
+    private ChannelStats(long messageCount, SortedMap<Date, Long> dailyCounts, long[] hourlyCounts,
+                         Map<MessageInfo.MessageType, Long> typeCounts,
+                         List<SenderStats> topSenders) {
+        this.messageCount = messageCount;
+        this.dailyCounts = Collections.unmodifiableSortedMap(dailyCounts);
+        this.hourlyCounts = hourlyCounts;
+        this.typeCounts = Collections.unmodifiableMap(typeCounts);
+        this.topSenders = Collections.unmodifiableList(topSenders);
+    }
+
+    public long getMessageCount() {
+        return messageCount;
+    }
+
+    /**
+     * @return the message counts keyed by the start (local midnight) of each day that has any
+     */
+    public SortedMap<Date, Long> getDailyCounts() {
+        return dailyCounts;
+    }
+
+    /**
+     * @return the message counts for each local hour of day (24 elements)
+     */
+    public long[] getHourlyCounts() {
+        return hourlyCounts.clone();
+    }
+
+    public Map<MessageInfo.MessageType, Long> getTypeCounts() {
+        return typeCounts;
+    }
+
+    /**
+     * @return the senders with the most messages, most active first
+     */
+    public List<SenderStats> getTopSenders() {
+        return topSenders;
+    }
+
+    public static class SenderStats {
+
+        private final UUID uuid;
+        private String nick;
+        private long messageCount;
+
+        private SenderStats(UUID uuid) {
+            this.uuid = uuid;
+        }
+
+        public UUID getUUID() {
+            return uuid;
+        }
+
+        /**
+         * @return the most recently used nick of the sender
+         */
+        public String getNick() {
+            return nick;
+        }
+
+        public long getMessageCount() {
+            return messageCount;
+        }
+
+    }
+
+    /**
+     * Merges the summed aggregates. A sender added more than once keeps the last non-null nick.
+     */
+    static class Collector {
+
+        private long messageCount;
+        private final Map<Long, Long> dailyCounts = new HashMap<>();
+        private final long[] hourlyCounts = new long[24];
+        private final Map<MessageInfo.MessageType, Long> typeCounts = new HashMap<>();
+        private final Map<UUID, SenderStats> senders = new HashMap<>();
+
+        void addHourlyCount(long dateId, int hour, int type, long count) {
+            messageCount += count;
+            Long c = dailyCounts.get(dateId);
+            dailyCounts.put(dateId, c == null ? count : c + count);
+            if (hour >= 0 && hour < hourlyCounts.length)
+                hourlyCounts[hour] += count;
+            MessageInfo.MessageType t = MessageStorageHelper.getMessageType(type);
+            c = typeCounts.get(t);
+            typeCounts.put(t, c == null ? count : c + count);
+        }
+
+        void addSenderCount(UUID uuid, String nick, long count) {
+            SenderStats s = senders.get(uuid);
+            if (s == null) {
+                s = new SenderStats(uuid);
+                senders.put(uuid, s);
+            }
+            if (nick != null)
+                s.nick = nick;
+            s.messageCount += count;
+        }
+
+        ChannelStats build(int topSenderCount) {
+            SortedMap<Date, Long> daily = new TreeMap<>();
+            Calendar calendar = Calendar.getInstance();
+            for (Map.Entry<Long, Long> e : dailyCounts.entrySet()) {
+                if (e.getValue() <= 0)
+                    continue;
+                long dateId = e.getKey();
+                calendar.clear();
+                calendar.set(DateIdentifierHelper.getYear(dateId),
+                        DateIdentifierHelper.getMonth(dateId) - 1,
+                        DateIdentifierHelper.getDay(dateId));
+                daily.put(calendar.getTime(), e.getValue());
+            }
+            List<SenderStats> top = new ArrayList<>();
+            for (SenderStats s : senders.values()) {
+                if (s.messageCount > 0)
+                    top.add(s);
+            }
+            Collections.sort(top, (a, b) -> Long.compare(b.messageCount, a.messageCount));
+            if (top.size() > topSenderCount)
+                top = new ArrayList<>(top.subList(0, topSenderCount));
+            return new ChannelStats(messageCount, daily, hourlyCounts.clone(),
+                    new HashMap<>(typeCounts), top);
+        }
+
+    }
+
+}
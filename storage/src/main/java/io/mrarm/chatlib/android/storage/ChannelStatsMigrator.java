@@ -0,0 +1,30 @@
+package io.mrarm.chatlib.android.storage;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import io.mrarm.chatlib.android.storage.contract.ChannelStatsContract;
+
+class ChannelStatsMigrator extends DatabaseMigrator {
+
+    private static final int CURRENT_VERSION = 1;
+
+    @Override
+    int getCurrentVersion() {
+        return CURRENT_VERSION;
+    }
+
+    @Override
+    protected void onCreate(SQLiteDatabase database) {
+        database.execSQL(ChannelStatsContract.FileEntry.CREATE_TABLE);
+        database.execSQL(ChannelStatsContract.HourlyStatsEntry.CREATE_TABLE);
+        database.execSQL(ChannelStatsContract.HourlyStatsEntry.CREATE_INDEX);
+        database.execSQL(ChannelStatsContract.SenderStatsEntry.CREATE_TABLE);
+        database.execSQL(ChannelStatsContract.SenderStatsEntry.CREATE_INDEX);
+        database.execSQL(ChannelStatsContract.SenderStatsEntry.CREATE_DATE_INDEX);
+    }
+
+    @Override
+    protected void onUpgrade(SQLiteDatabase database, int fromVersion) {
+    }
+
+}
@@ -0,0 +1,250 @@
+package io.mrarm.chatlib.android.storage;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.mrarm.chatlib.android.storage.contract.ChannelStatsContract;
+
+/**
+ * A summary of the aggregate tables of all the daily files, so that the statistics of a date
+ * range can be computed with a single query instead of opening every file in it.
+ *
+ * The rows of every file are replaced as a whole when the file is rolled up. Files are marked
+ * dirty before their aggregates change, the mark is persisted, so a file changed right before
+ * the process was killed is still rolled up again. Files that are not listed at all have never
+ * been rolled up.
+ *
+ * Lock order: the daily file's lock is always taken before the lock of the store.
+ */
+class ChannelStatsStore {
+
+    static final String FILE_NAME = "messages-stats.db";
+
+    private final File file;
+    private SQLiteDatabase database;
+    private SQLiteStatement markDirtyStatement;
+
+    ChannelStatsStore(File directory) {
+        this.file = new File(directory, FILE_NAME);
+    }
+
+    private SQLiteDatabase getDatabase() {
+        if (database == null) {
+            database = SQLiteDatabase.openOrCreateDatabase(file, null);
+            ChannelStatsMigrator migrator = new ChannelStatsMigrator();
+            if (migrator.needsUpgrade(database))
+                migrator.migrate(database);
+        }
+        return database;
+    }
+
+    synchronized void close() {
+        if (database != null) {
+            if (markDirtyStatement != null)
+                markDirtyStatement.close();
+            markDirtyStatement = null;
+            database.close();
+            database = null;
+        }
+    }
+
+    synchronized void markDirty(long fileDateId) {
+        if (markDirtyStatement == null)
+            markDirtyStatement = getDatabase().compileStatement("INSERT OR REPLACE INTO " +
+                    ChannelStatsContract.FileEntry.TABLE_NAME + " (" +
+                    ChannelStatsContract.FileEntry.COLUMN_NAME_FILE_DATE_ID + "," +
+                    ChannelStatsContract.FileEntry.COLUMN_NAME_DIRTY + ") VALUES (?1,1)");
+        markDirtyStatement.bindLong(1, fileDateId);
+        markDirtyStatement.executeInsert();
+        markDirtyStatement.clearBindings();
+    }
+
+    /**
+     * @return the files whose rows are up to date, in ascending order
+     */
+    synchronized List<Long> getRolledUpFiles() {
+        List<Long> ret = new ArrayList<>();
+        Cursor cursor = getDatabase().rawQuery("SELECT " +
+                ChannelStatsContract.FileEntry.COLUMN_NAME_FILE_DATE_ID + " FROM " +
+                ChannelStatsContract.FileEntry.TABLE_NAME + " WHERE " +
+                ChannelStatsContract.FileEntry.COLUMN_NAME_DIRTY + "=0 ORDER BY " +
+                ChannelStatsContract.FileEntry.COLUMN_NAME_FILE_DATE_ID, null);
+        while (cursor.moveToNext())
+            ret.add(cursor.getLong(0));
+        cursor.close();
+        return ret;
+    }
+
+    /**
+     * @return all the files that have an entry, in ascending order
+     */
+    synchronized List<Long> getFiles() {
+        List<Long> ret = new ArrayList<>();
+        Cursor cursor = getDatabase().rawQuery("SELECT " +
+                ChannelStatsContract.FileEntry.COLUMN_NAME_FILE_DATE_ID + " FROM " +
+                ChannelStatsContract.FileEntry.TABLE_NAME + " ORDER BY " +
+                ChannelStatsContract.FileEntry.COLUMN_NAME_FILE_DATE_ID, null);
+        while (cursor.moveToNext())
+            ret.add(cursor.getLong(0));
+        cursor.close();
+        return ret;
+    }
+
+    private static void deleteFileRows(SQLiteDatabase database, long fileDateId) {
+        database.execSQL("DELETE FROM " + ChannelStatsContract.HourlyStatsEntry.TABLE_NAME +
+                " WHERE " + ChannelStatsContract.HourlyStatsEntry.COLUMN_NAME_FILE_DATE_ID +
+                "=" + fileDateId);
+        database.execSQL("DELETE FROM " + ChannelStatsContract.SenderStatsEntry.TABLE_NAME +
+                " WHERE " + ChannelStatsContract.SenderStatsEntry.COLUMN_NAME_FILE_DATE_ID +
+                "=" + fileDateId);
+    }
+
+    /**
+     * Replaces the rows of the specified file and marks it as up to date. Must be called with
+     * the file locked, so that it can't be changed (and marked dirty) in the meantime.
+     * @param hourly rows of channel, date id, hour, type and count, or null if the file has no
+     *               aggregates
+     * @param senders rows of channel, date id, sender UUID, nick and count, or null if the file
+     *                has no aggregates
+     */
+    synchronized void replaceFile(long fileDateId, Cursor hourly, Cursor senders) {
+        SQLiteDatabase database = getDatabase();
+        database.beginTransaction();
+        SQLiteStatement insertHourly = null;
+        SQLiteStatement insertSender = null;
+        try {
+            deleteFileRows(database, fileDateId);
+            if (hourly != null) {
+                insertHourly = database.compileStatement("INSERT INTO " +
+                        ChannelStatsContract.HourlyStatsEntry.TABLE_NAME + " (" +
+                        ChannelStatsContract.HourlyStatsEntry.COLUMN_NAME_FILE_DATE_ID + "," +
+                        ChannelStatsContract.HourlyStatsEntry.COLUMN_NAME_CHANNEL + "," +
+                        ChannelStatsContract.HourlyStatsEntry.COLUMN_NAME_DATE_ID + "," +
+                        ChannelStatsContract.HourlyStatsEntry.COLUMN_NAME_HOUR + "," +
+                        ChannelStatsContract.HourlyStatsEntry.COLUMN_NAME_TYPE + "," +
+                        ChannelStatsContract.HourlyStatsEntry.COLUMN_NAME_COUNT +
+                        ") VALUES (?1,?2,?3,?4,?5,?6)");
+                while (hourly.moveToNext()) {
+                    insertHourly.bindLong(1, fileDateId);
+                    insertHourly.bindString(2, hourly.getString(0));
+                    insertHourly.bindLong(3, hourly.getLong(1));
+                    insertHourly.bindLong(4, hourly.getInt(2));
+                    insertHourly.bindLong(5, hourly.getInt(3));
+                    insertHourly.bindLong(6, hourly.getLong(4));
+                    insertHourly.executeInsert();
+                    insertHourly.clearBindings();
+                }
+            }
+            if (senders != null) {
+                insertSender = database.compileStatement("INSERT INTO " +
+                        ChannelStatsContract.SenderStatsEntry.TABLE_NAME + " (" +
+                        ChannelStatsContract.SenderStatsEntry.COLUMN_NAME_FILE_DATE_ID + "," +
+                        ChannelStatsContract.SenderStatsEntry.COLUMN_NAME_CHANNEL + "," +
+                        ChannelStatsContract.SenderStatsEntry.COLUMN_NAME_DATE_ID + "," +
+                        ChannelStatsContract.SenderStatsEntry.COLUMN_NAME_SENDER_UUID + "," +
+                        ChannelStatsContract.SenderStatsEntry.COLUMN_NAME_NICK + "," +
+                        ChannelStatsContract.SenderStatsEntry.COLUMN_NAME_COUNT +
+                        ") VALUES (?1,?2,?3,?4,?5,?6)");
+                while (senders.moveToNext()) {
+                    insertSender.bindLong(1, fileDateId);
+                    insertSender.bindString(2, senders.getString(0));
+                    insertSender.bindLong(3, senders.getLong(1));
+                    insertSender.bindBlob(4, senders.getBlob(2));
+                    if (senders.isNull(3))
+                        insertSender.bindNull(5);
+                    else
+                        insertSender.bindString(5, senders.getString(3));
+                    insertSender.bindLong(6, senders.getLong(4));
+                    insertSender.executeInsert();
+                    insertSender.clearBindings();
+                }
+            }
+            database.execSQL("INSERT OR REPLACE INTO " +
+                    ChannelStatsContract.FileEntry.TABLE_NAME + " (" +
+                    ChannelStatsContract.FileEntry.COLUMN_NAME_FILE_DATE_ID + "," +
+                    ChannelStatsContract.FileEntry.COLUMN_NAME_DIRTY + ") VALUES (" +
+                    fileDateId + ",0)");
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            if (insertHourly != null)
+                insertHourly.close();
+            if (insertSender != null)
+                insertSender.close();
+        }
+    }
+
+    /**
+     * Removes the rows of a file that has been deleted.
+     */
+    synchronized void removeFile(long fileDateId) {
+        SQLiteDatabase database = getDatabase();
+        database.beginTransaction();
+        try {
+            deleteFileRows(database, fileDateId);
+            database.execSQL("DELETE FROM " + ChannelStatsContract.FileEntry.TABLE_NAME +
+                    " WHERE " + ChannelStatsContract.FileEntry.COLUMN_NAME_FILE_DATE_ID + "=" +
+                    fileDateId);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Adds the statistics of the messages of the channel sent between the two days (inclusive)
+     * to the collector. Every sender is only added once, with the last nick seen in the range.
+     */
+    synchronized void collect(String channel, long fromDateId, long toDateId,
+                              ChannelStats.Collector collector) {
+        String dateRange = " BETWEEN " + fromDateId + " AND " + toDateId;
+        Cursor cursor = getDatabase().rawQuery("SELECT " +
+                ChannelStatsContract.HourlyStatsEntry.COLUMN_NAME_DATE_ID + "," +
+                ChannelStatsContract.HourlyStatsEntry.COLUMN_NAME_HOUR + "," +
+                ChannelStatsContract.HourlyStatsEntry.COLUMN_NAME_TYPE + ",SUM(" +
+                ChannelStatsContract.HourlyStatsEntry.COLUMN_NAME_COUNT + ") FROM " +
+                ChannelStatsContract.HourlyStatsEntry.TABLE_NAME + " WHERE " +
+                ChannelStatsContract.HourlyStatsEntry.COLUMN_NAME_CHANNEL + "=?1 AND " +
+                ChannelStatsContract.HourlyStatsEntry.COLUMN_NAME_DATE_ID + dateRange +
+                " GROUP BY " + ChannelStatsContract.HourlyStatsEntry.COLUMN_NAME_DATE_ID + "," +
+                ChannelStatsContract.HourlyStatsEntry.COLUMN_NAME_HOUR + "," +
+                ChannelStatsContract.HourlyStatsEntry.COLUMN_NAME_TYPE, new String[]{channel});
+        try {
+            while (cursor.moveToNext())
+                collector.addHourlyCount(cursor.getLong(0), cursor.getInt(1), cursor.getInt(2),
+                        cursor.getLong(3));
+        } finally {
+            cursor.close();
+        }
+        cursor = getDatabase().rawQuery("SELECT s." +
+                ChannelStatsContract.SenderStatsEntry.COLUMN_NAME_SENDER_UUID + ",(SELECT n." +
+                ChannelStatsContract.SenderStatsEntry.COLUMN_NAME_NICK + " FROM " +
+                ChannelStatsContract.SenderStatsEntry.TABLE_NAME + " n WHERE n." +
+                ChannelStatsContract.SenderStatsEntry.COLUMN_NAME_CHANNEL + "=?1 AND n." +
+                ChannelStatsContract.SenderStatsEntry.COLUMN_NAME_SENDER_UUID + "=s." +
+                ChannelStatsContract.SenderStatsEntry.COLUMN_NAME_SENDER_UUID + " AND n." +
+                ChannelStatsContract.SenderStatsEntry.COLUMN_NAME_DATE_ID + dateRange + " AND n." +
+                ChannelStatsContract.SenderStatsEntry.COLUMN_NAME_NICK + " IS NOT NULL ORDER BY n." +
+                ChannelStatsContract.SenderStatsEntry.COLUMN_NAME_DATE_ID + " DESC,n." +
+                ChannelStatsContract.SenderStatsEntry.COLUMN_NAME_FILE_DATE_ID + " DESC LIMIT 1)," +
+                "SUM(s." + ChannelStatsContract.SenderStatsEntry.COLUMN_NAME_COUNT + ") FROM " +
+                ChannelStatsContract.SenderStatsEntry.TABLE_NAME + " s WHERE s." +
+                ChannelStatsContract.SenderStatsEntry.COLUMN_NAME_CHANNEL + "=?1 AND s." +
+                ChannelStatsContract.SenderStatsEntry.COLUMN_NAME_DATE_ID + dateRange +
+                " GROUP BY s." + ChannelStatsContract.SenderStatsEntry.COLUMN_NAME_SENDER_UUID,
+                new String[]{channel});
+        try {
+            while (cursor.moveToNext())
+                collector.addSenderCount(MessageStorageHelper.bytesToUUID(cursor.getBlob(0)),
+                        cursor.getString(1), cursor.getLong(2));
+        } finally {
+            cursor.close();
+        }
+    }
+
+}
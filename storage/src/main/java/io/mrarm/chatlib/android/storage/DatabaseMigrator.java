@@ -0,0 +1,52 @@
+package io.mrarm.chatlib.android.storage;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Brings a database to the current schema version one version at a time. Every step runs in its
+ * own transaction together with the version change, so an interrupted upgrade resumes from the
+ * last completed step. Databases with a newer version than the current one are left alone, as
+ * later versions only add to the schema.
+ */
+abstract class DatabaseMigrator {
+
+    abstract int getCurrentVersion();
+
+    /**
+     * Creates the current schema in an empty database.
+     */
+    protected abstract void onCreate(SQLiteDatabase database);
+
+    /**
+     * Upgrades the schema from the specified version to the next one.
+     */
+    protected abstract void onUpgrade(SQLiteDatabase database, int fromVersion);
+
+    boolean needsUpgrade(SQLiteDatabase database) {
+        return database.getVersion() < getCurrentVersion();
+    }
+
+    void migrate(SQLiteDatabase database) {
+        int version = database.getVersion();
+        if (version == 0) {
+            runStep(database, () -> onCreate(database), getCurrentVersion());
+            return;
+        }
+        for ( ; version < getCurrentVersion(); version++) {
+            int fromVersion = version;
+            runStep(database, () -> onUpgrade(database, fromVersion), version + 1);
+        }
+    }
+
+    private static void runStep(SQLiteDatabase database, Runnable step, int newVersion) {
+        database.beginTransaction();
+        try {
+            step.run();
+            database.setVersion(newVersion);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+}
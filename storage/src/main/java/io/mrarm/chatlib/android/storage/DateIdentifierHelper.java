@@ -0,0 +1,155 @@
+package io.mrarm.chatlib.android.storage;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Date identifier math done with plain arithmetic, so that it can be used from any thread
+ * without going through shared Calendar or SimpleDateFormat instances.
+ * A date identifier is day + (month - 1) * 32 + year * 32 * 12, in local time.
+ */
+class DateIdentifierHelper {
+
+    static final long MILLIS_PER_HOUR = 60L * 60 * 1000;
+    static final long MILLIS_PER_DAY = 24 * MILLIS_PER_HOUR;
+
+    private static final String FILE_NAME_PREFIX = "messages-";
+    private static final String FILE_NAME_SUFFIX = ".db";
+    private static final int FILE_NAME_LENGTH = FILE_NAME_PREFIX.length() + 10 +
+            FILE_NAME_SUFFIX.length();
+
+    static long getDateIdentifier(long millis) {
+        long local = millis + TimeZone.getDefault().getOffset(millis);
+        long days = local / MILLIS_PER_DAY;
+        if (local % MILLIS_PER_DAY < 0)
+            days--;
+        return getDateIdentifierFromEpochDay(days);
+    }
+
+    static long getDateIdentifier(int year, int month, int day) {
+        return day + (month - 1) * 32 + year * 32L * 12;
+    }
+
+    static int getYear(long dateId) {
+        return (int) (dateId / 32 / 12);
+    }
+
+    static int getMonth(long dateId) {
+        return (int) ((dateId / 32) % 12) + 1;
+    }
+
+    static int getDay(long dateId) {
+        return (int) (dateId % 32);
+    }
+
+    // see http://howardhinnant.github.io/date_algorithms.html#civil_from_days
+    private static long getDateIdentifierFromEpochDay(long days) {
+        days += 719468;
+        long era = (days >= 0 ? days : days - 146096) / 146097;
+        long doe = days - era * 146097;
+        long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        long mp = (5 * doy + 2) / 153;
+        int day = (int) (doy - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        int year = (int) (yoe + era * 400 + (month <= 2 ? 1 : 0));
+        return getDateIdentifier(year, month, day);
+    }
+
+    /**
+     * Appends the date in the yyyy-MM-dd format.
+     */
+    static void appendDate(StringBuilder b, long dateId) {
+        appendPadded(b, getYear(dateId), 4);
+        b.append('-');
+        appendPadded(b, getMonth(dateId), 2);
+        b.append('-');
+        appendPadded(b, getDay(dateId), 2);
+    }
+
+    static String getFileName(long dateId) {
+        StringBuilder b = new StringBuilder(FILE_NAME_LENGTH);
+        b.append(FILE_NAME_PREFIX);
+        appendDate(b, dateId);
+        b.append(FILE_NAME_SUFFIX);
+        return b.toString();
+    }
+
+    /**
+     * Parses a daily file name created by getFileName.
+     * @return the date identifier or -1 if the name isn't a valid daily file name
+     */
+    static long parseFileName(String fileName) {
+        if (fileName.length() != FILE_NAME_LENGTH || !fileName.startsWith(FILE_NAME_PREFIX) ||
+                !fileName.endsWith(FILE_NAME_SUFFIX))
+            return -1;
+        int o = FILE_NAME_PREFIX.length();
+        if (fileName.charAt(o + 4) != '-' || fileName.charAt(o + 7) != '-')
+            return -1;
+        int year = parseNumber(fileName, o, 4);
+        int month = parseNumber(fileName, o + 5, 2);
+        int day = parseNumber(fileName, o + 8, 2);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31)
+            return -1;
+        return getDateIdentifier(year, month, day);
+    }
+
+    /**
+     * Remembers the boundaries of the current day, so that the date identifier of the current
+     * time can be obtained without any allocations.
+     */
+    static class CurrentDayCache {
+
+        private long dayStart = Long.MAX_VALUE;
+        private long dayEnd = Long.MIN_VALUE;
+        private long dateId;
+
+        synchronized long getDateIdentifier(long millis) {
+            if (millis < dayStart || millis >= dayEnd) {
+                Calendar c = Calendar.getInstance();
+                c.setTimeInMillis(millis);
+                c.set(Calendar.HOUR_OF_DAY, 0);
+                c.set(Calendar.MINUTE, 0);
+                c.set(Calendar.SECOND, 0);
+                c.set(Calendar.MILLISECOND, 0);
+                dayStart = c.getTimeInMillis();
+                c.add(Calendar.DATE, 1);
+                dayEnd = c.getTimeInMillis();
+                dateId = DateIdentifierHelper.getDateIdentifier(millis);
+            }
+            return dateId;
+        }
+
+        /**
+         * @return the local hour of day (0-23) of the specified time
+         */
+        synchronized int getHourOfDay(long millis) {
+            getDateIdentifier(millis);
+            if (dayEnd - dayStart == MILLIS_PER_DAY)
+                return (int) ((millis - dayStart) / MILLIS_PER_HOUR);
+            // the day has a DST transition
+            Calendar c = Calendar.getInstance();
+            c.setTimeInMillis(millis);
+            return c.get(Calendar.HOUR_OF_DAY);
+        }
+
+    }
+
+    private static void appendPadded(StringBuilder b, int value, int digits) {
+        for (int div = (int) Math.pow(10, digits - 1); div > 1 && value < div; div /= 10)
+            b.append('0');
+        b.append(value);
+    }
+
+    private static int parseNumber(String str, int start, int length) {
+        int ret = 0;
+        for (int i = start; i < start + length; i++) {
+            char c = str.charAt(i);
+            if (c < '0' || c > '9')
+                return -1;
+            ret = ret * 10 + (c - '0');
+        }
+        return ret;
+    }
+
+}
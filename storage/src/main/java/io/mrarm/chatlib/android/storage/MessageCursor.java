@@ -0,0 +1,82 @@
+package io.mrarm.chatlib.android.storage;
+
+import android.database.Cursor;
+
+import java.io.Closeable;
+
+import io.mrarm.chatlib.dto.MessageFilterOptions;
+import io.mrarm.chatlib.dto.MessageInfo;
+
+/**
+ * A forward-only cursor over the messages of a single channel in a single daily file. Rows are
+ * fetched in chunks using the row id of the last returned message, so memory usage stays bounded
+ * and each chunk query is cheap regardless of the channel size.
+ */
+class MessageCursor implements Closeable {
+
+    static final int DEFAULT_CHUNK_SIZE = 256;
+
+    private final SQLiteMessageStorageFile file;
+    private final String channel;
+    private final boolean newer;
+    private final MessageFilterOptions filterOptions;
+    private final int chunkSize;
+    private Cursor cursor;
+    private int lastId;
+    private boolean lastChunk = false;
+
+    MessageCursor(SQLiteMessageStorageFile file, String channel, int afterId, boolean newer,
+                  MessageFilterOptions filterOptions) {
+        this(file, channel, afterId, newer, filterOptions, DEFAULT_CHUNK_SIZE);
+    }
+
+    MessageCursor(SQLiteMessageStorageFile file, String channel, int afterId, boolean newer,
+                  MessageFilterOptions filterOptions, int chunkSize) {
+        this.file = file;
+        this.channel = channel;
+        this.lastId = afterId;
+        this.newer = newer;
+        this.filterOptions = filterOptions;
+        this.chunkSize = chunkSize;
+    }
+
+    SQLiteMessageStorageFile getFile() {
+        return file;
+    }
+
+    public boolean moveToNext() {
+        while (true) {
+            if (cursor != null && cursor.moveToNext()) {
+                lastId = cursor.getInt(0);
+                return true;
+            }
+            if (lastChunk)
+                return false;
+            if (cursor != null)
+                cursor.close();
+            cursor = file.queryMessageChunk(channel, lastId, chunkSize, newer, filterOptions);
+            if (cursor == null || cursor.getCount() < chunkSize)
+                lastChunk = true;
+            if (cursor == null)
+                return false;
+        }
+    }
+
+    public int getId() {
+        return lastId;
+    }
+
+    public MessageInfo getMessage() {
+        return file.readMessage(cursor, channel);
+    }
+
+    @Override
+    public void close() {
+        if (cursor != null) {
+            cursor.close();
+            cursor = null;
+        }
+        lastChunk = true;
+    }
+
+}
@@ -0,0 +1,143 @@
+package io.mrarm.chatlib.android.storage;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.mrarm.chatlib.dto.MessageInfo;
+
+/**
+ * Keeps per channel Bloom filters of the fingerprints of recently stored messages, so that
+ * messages replayed by a bouncer after a reconnect can be recognized without querying the
+ * storage for every message. A hit only means the message might be a duplicate, it must be
+ * confirmed with a lookup. Must only be used from the write thread, except for the counters and
+ * the channel filters themselves, which are seeded from the stored messages in the background.
+ */
+class MessageDeduplicator {
+
+    private static final int FILTER_BITS = 1 << 16;
+    private static final int FILTER_HASH_COUNT = 4;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final long windowMillis;
+    private final Map<String, ChannelFilter> channels = new HashMap<>();
+    private final AtomicLong suppressedCount = new AtomicLong();
+    private final AtomicLong falsePositiveCount = new AtomicLong();
+
+    MessageDeduplicator(long windowMillis) {
+        this.windowMillis = windowMillis;
+    }
+
+    long getWindowMillis() {
+        return windowMillis;
+    }
+
+    /**
+     * @return the filter of the channel or null if it hasn't been created yet
+     */
+    ChannelFilter getChannelFilter(String channel, long now) {
+        ChannelFilter ret = channels.get(channel);
+        if (ret != null)
+            ret.rotate(now);
+        return ret;
+    }
+
+    ChannelFilter createChannelFilter(String channel, long now) {
+        ChannelFilter ret = new ChannelFilter(now);
+        channels.put(channel, ret);
+        return ret;
+    }
+
+    void removeChannelFilter(String channel) {
+        channels.remove(channel);
+    }
+
+    long getSuppressedCount() {
+        return suppressedCount.get();
+    }
+
+    long getFalsePositiveCount() {
+        return falsePositiveCount.get();
+    }
+
+    void onSuppressed() {
+        suppressedCount.incrementAndGet();
+    }
+
+    void onFalsePositive() {
+        falsePositiveCount.incrementAndGet();
+    }
+
+    private static long hash(long h, String str) {
+        if (str == null)
+            return (h ^ 0xff) * FNV_PRIME;
+        for (int i = 0; i < str.length(); i++)
+            h = (h ^ str.charAt(i)) * FNV_PRIME;
+        return (h ^ 0xfe) * FNV_PRIME;
+    }
+
+    static long fingerprint(String nick, long date, int type, String text) {
+        long h = hash(FNV_OFFSET_BASIS, nick);
+        h = (h ^ date) * FNV_PRIME;
+        h = (h ^ type) * FNV_PRIME;
+        h = hash(h, text);
+        // finalize, so that both halves used by the filter are well mixed
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    static long fingerprint(MessageInfo message) {
+        return fingerprint(message.getSender() != null ? message.getSender().getNick() : null,
+                message.getDate().getTime(), message.getType().asInt(), message.getMessage());
+    }
+
+    /**
+     * Two filter generations, each covering a whole window; the older one is recycled when the
+     * newer one gets a window old, so a fingerprint is remembered for at least a whole window and
+     * at most two. Until the filter is seeded with the messages stored before it was created, it
+     * can't rule anything out.
+     */
+    class ChannelFilter {
+
+        private BloomFilter current = new BloomFilter(FILTER_BITS, FILTER_HASH_COUNT);
+        private BloomFilter previous = new BloomFilter(FILTER_BITS, FILTER_HASH_COUNT);
+        private long currentStart;
+        private volatile boolean seeded = false;
+
+        private ChannelFilter(long now) {
+            currentStart = now;
+        }
+
+        boolean isSeeded() {
+            return seeded;
+        }
+
+        void setSeeded() {
+            seeded = true;
+        }
+
+        private synchronized void rotate(long now) {
+            if (now - currentStart < windowMillis)
+                return;
+            BloomFilter f = previous;
+            f.clear();
+            previous = current;
+            current = f;
+            currentStart = now;
+        }
+
+        synchronized boolean mightContain(long fingerprint) {
+            return current.mightContain(fingerprint) || previous.mightContain(fingerprint);
+        }
+
+        synchronized void add(long fingerprint) {
+            current.add(fingerprint);
+        }
+
+    }
+
+}
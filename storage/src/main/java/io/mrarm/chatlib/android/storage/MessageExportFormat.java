@@ -0,0 +1,15 @@
+package io.mrarm.chatlib.android.storage;
+
+public enum MessageExportFormat {
+
+    /**
+     * IRC style plain text log, one message per line.
+     */
+    PLAIN_TEXT,
+
+    /**
+     * One JSON object per line.
+     */
+    JSON_LINES
+
+}
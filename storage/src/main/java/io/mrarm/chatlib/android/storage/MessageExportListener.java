@@ -0,0 +1,11 @@
+package io.mrarm.chatlib.android.storage;
+
+public interface MessageExportListener {
+
+    /**
+     * Called after every exported daily file of every channel.
+     * @return false to cancel the export
+     */
+    boolean onProgress(int processedFiles, int totalFiles, long exportedMessages);
+
+}
@@ -0,0 +1,125 @@
+package io.mrarm.chatlib.android.storage;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+
+import io.mrarm.chatlib.dto.KickMessageInfo;
+import io.mrarm.chatlib.dto.MessageInfo;
+import io.mrarm.chatlib.dto.MessageSenderInfo;
+import io.mrarm.chatlib.dto.NickChangeMessageInfo;
+
+/**
+ * Writes messages in one of the MessageExportFormats. Each instance has its own date format, so
+ * that exports can run in parallel.
+ */
+class MessageExporter {
+
+    private final MessageExportFormat format;
+    private final Writer writer;
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss",
+            Locale.US);
+    private JsonWriter jsonWriter;
+
+    MessageExporter(MessageExportFormat format, Writer writer) {
+        this.format = format;
+        this.writer = writer;
+        if (format == MessageExportFormat.JSON_LINES) {
+            jsonWriter = new JsonWriter(writer);
+            jsonWriter.setLenient(true); // allows multiple top level values
+        }
+    }
+
+    void writeSectionHeader(String channel, long dateId) throws IOException {
+        if (format != MessageExportFormat.PLAIN_TEXT)
+            return;
+        StringBuilder b = new StringBuilder("--- ");
+        b.append(channel);
+        b.append(' ');
+        DateIdentifierHelper.appendDate(b, dateId);
+        b.append('\n');
+        writer.write(b.toString());
+    }
+
+    void writeMessage(String channel, MessageInfo message) throws IOException {
+        if (format == MessageExportFormat.JSON_LINES)
+            writeJsonMessage(channel, message);
+        else
+            writeTextMessage(message);
+    }
+
+    void flush() throws IOException {
+        writer.flush();
+    }
+
+    private static String getNick(MessageInfo message) {
+        return message.getSender() != null ? message.getSender().getNick() : "";
+    }
+
+    private void writeTextMessage(MessageInfo message) throws IOException {
+        writer.write('[');
+        writer.write(dateFormat.format(message.getDate()));
+        writer.write("] ");
+        String nick = getNick(message);
+        String text = message.getMessage();
+        switch (message.getType()) {
+            case NORMAL:
+                writer.write("<" + nick + "> " + text);
+                break;
+            case NOTICE:
+                writer.write("-" + nick + "- " + text);
+                break;
+            case ME:
+                writer.write("* " + nick + " " + text);
+                break;
+            case JOIN:
+                writer.write("*** " + nick + " has joined");
+                break;
+            case PART:
+                writer.write("*** " + nick + " has left" + (text != null ? " (" + text + ")" : ""));
+                break;
+            case QUIT:
+                writer.write("*** " + nick + " has quit" + (text != null ? " (" + text + ")" : ""));
+                break;
+            case NICK_CHANGE:
+                writer.write("*** " + nick + " is now known as " +
+                        ((NickChangeMessageInfo) message).getNewNick());
+                break;
+            case KICK:
+                writer.write("*** " + ((KickMessageInfo) message).getKickedNick() +
+                        " was kicked by " + nick + (text != null ? " (" + text + ")" : ""));
+                break;
+            default:
+                writer.write("*** " + nick + (text != null ? " " + text : ""));
+                break;
+        }
+        writer.write('\n');
+    }
+
+    private void writeJsonMessage(String channel, MessageInfo message) throws IOException {
+        jsonWriter.beginObject();
+        jsonWriter.name("channel").value(channel);
+        jsonWriter.name("date").value(message.getDate().getTime());
+        jsonWriter.name("type").value(message.getType().name());
+        MessageSenderInfo sender = message.getSender();
+        if (sender != null) {
+            jsonWriter.name("nick").value(sender.getNick());
+            if (sender.getUser() != null)
+                jsonWriter.name("user").value(sender.getUser());
+            if (sender.getHost() != null)
+                jsonWriter.name("host").value(sender.getHost());
+        }
+        if (message.getMessage() != null)
+            jsonWriter.name("text").value(message.getMessage());
+        if (message instanceof NickChangeMessageInfo)
+            jsonWriter.name("newNick").value(((NickChangeMessageInfo) message).getNewNick());
+        if (message instanceof KickMessageInfo)
+            jsonWriter.name("kickedNick").value(((KickMessageInfo) message).getKickedNick());
+        jsonWriter.endObject();
+        writer.write('\n');
+    }
+
+}
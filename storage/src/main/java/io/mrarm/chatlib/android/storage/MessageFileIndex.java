@@ -0,0 +1,153 @@
+package io.mrarm.chatlib.android.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A persisted list of the daily message files (and their sizes and schema versions) that exist
+ * in the storage directory, so that the directory doesn't need to be listed at startup.
+ */
+class MessageFileIndex {
+
+    static final String FILE_NAME = "messages-index.bin";
+
+    private static final int FORMAT_MAGIC = 0x4D534958; // MSIX
+    private static final int FORMAT_VERSION = 2;
+    private static final int FORMAT_VERSION_NO_SCHEMA = 1;
+
+    private final File file;
+    private final Map<Long, Entry> entries = new TreeMap<>();
+
+    MessageFileIndex(File directory) {
+        this.file = new File(directory, FILE_NAME);
+    }
+
+    /**
+     * Loads the index from disk.
+     * @return whether the index was loaded successfully
+     */
+    synchronized boolean load() {
+        entries.clear();
+        try (DataInputStream stream = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)))) {
+            if (stream.readInt() != FORMAT_MAGIC)
+                return false;
+            int version = stream.readInt();
+            if (version != FORMAT_VERSION && version != FORMAT_VERSION_NO_SCHEMA)
+                return false;
+            int count = stream.readInt();
+            for (int i = 0; i < count; i++) {
+                long dateId = stream.readLong();
+                long size = stream.readLong();
+                int schemaVersion = (version == FORMAT_VERSION ? stream.readInt() : 0);
+                entries.put(dateId, new Entry(size, schemaVersion));
+            }
+            return true;
+        } catch (IOException e) {
+            entries.clear();
+            return false;
+        }
+    }
+
+    synchronized void save() {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmpFile)))) {
+            stream.writeInt(FORMAT_MAGIC);
+            stream.writeInt(FORMAT_VERSION);
+            stream.writeInt(entries.size());
+            for (Map.Entry<Long, Entry> e : entries.entrySet()) {
+                stream.writeLong(e.getKey());
+                stream.writeLong(e.getValue().size);
+                stream.writeInt(e.getValue().schemaVersion);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            tmpFile.delete();
+            return;
+        }
+        if (!tmpFile.renameTo(file))
+            tmpFile.delete();
+    }
+
+    synchronized List<Long> getDateIds() {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    synchronized boolean contains(long dateId) {
+        return entries.containsKey(dateId);
+    }
+
+    synchronized long getSize(long dateId) {
+        Entry ret = entries.get(dateId);
+        return ret != null ? ret.size : 0;
+    }
+
+    /**
+     * @return the last seen schema version of the file, or 0 if unknown
+     */
+    synchronized int getSchemaVersion(long dateId) {
+        Entry ret = entries.get(dateId);
+        return ret != null ? ret.schemaVersion : 0;
+    }
+
+    synchronized void put(long dateId, long size) {
+        Entry entry = entries.get(dateId);
+        entries.put(dateId, new Entry(size, entry != null ? entry.schemaVersion : 0));
+    }
+
+    /**
+     * @return whether the version has changed
+     */
+    synchronized boolean setSchemaVersion(long dateId, int schemaVersion) {
+        Entry entry = entries.get(dateId);
+        if (entry == null || entry.schemaVersion == schemaVersion)
+            return false;
+        entries.put(dateId, new Entry(entry.size, schemaVersion));
+        return true;
+    }
+
+    synchronized void remove(long dateId) {
+        entries.remove(dateId);
+    }
+
+    /**
+     * Replaces the contents of the index with the specified entries.
+     * @return whether the contents have changed
+     */
+    synchronized boolean replace(Map<Long, Long> newEntries) {
+        boolean changed = entries.keySet().retainAll(newEntries.keySet());
+        for (Map.Entry<Long, Long> e : newEntries.entrySet()) {
+            Entry entry = entries.get(e.getKey());
+            if (entry != null && entry.size == e.getValue())
+                continue;
+            // the file has changed behind our back, its version has to be checked again
+            entries.put(e.getKey(), new Entry(e.getValue(), 0));
+            changed = true;
+        }
+        return changed;
+    }
+
+    private static class Entry {
+
+        final long size;
+        final int schemaVersion;
+
+        Entry(long size, int schemaVersion) {
+            this.size = size;
+            this.schemaVersion = schemaVersion;
+        }
+
+    }
+
+}
@@ -0,0 +1,258 @@
+package io.mrarm.chatlib.android.storage;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.mrarm.chatlib.android.storage.contract.MessagesContract;
+import io.mrarm.chatlib.dto.MessageSenderInfo;
+
+/**
+ * The schema versions of the daily message files. Files are only upgraded when they are opened
+ * for writing or by the background upgrade, the read path handles every older version.
+ */
+class MessageFileMigrator extends DatabaseMigrator {
+
+    private static final String TAG = "MessageFileMigrator";
+
+    static final int VERSION_BATCHES = 2;
+    static final int VERSION_COMPRESSION = 3;
+    static final int VERSION_STATS = 4;
+    static final int VERSION_SENDER_INDEX = 5;
+    static final int VERSION_DATE_ORDERED_CHANNELS = 6;
+    static final int VERSION_DAILY_STATS = 7;
+
+    static final int CURRENT_VERSION = VERSION_DAILY_STATS;
+
+    static List<String> getChannels(SQLiteDatabase database) {
+        List<String> ret = new ArrayList<>();
+        String prefix = MessagesContract.MessageEntry.TABLE_NAME_PREFIX;
+        Cursor cursor = database.rawQuery("SELECT name FROM sqlite_master WHERE type='table'",
+                null);
+        while (cursor.moveToNext()) {
+            String name = cursor.getString(0);
+            if (name.startsWith(prefix))
+                ret.add(name.substring(prefix.length()));
+        }
+        cursor.close();
+        return ret;
+    }
+
+    static void createChannelIndexes(SQLiteDatabase database, String channel) {
+        String tableName = MessagesContract.MessageEntry.getEscapedTableName(channel);
+        database.execSQL("CREATE INDEX IF NOT EXISTS " +
+                MessagesContract.MessageEntry.getEscapedDateIndexName(channel) + " ON " +
+                tableName + " (" + MessagesContract.MessageEntry.COLUMN_NAME_DATE + ")");
+        database.execSQL("CREATE INDEX IF NOT EXISTS " +
+                MessagesContract.MessageEntry.getEscapedSenderIndexName(channel) + " ON " +
+                tableName + " (" + MessagesContract.MessageEntry.COLUMN_NAME_SENDER_UUID + ")");
+    }
+
+    @Override
+    int getCurrentVersion() {
+        return CURRENT_VERSION;
+    }
+
+    @Override
+    protected void onCreate(SQLiteDatabase database) {
+        // the channel tables are created when the first message is added
+        database.execSQL(MessagesContract.BatchEntry.CREATE_TABLE);
+        database.execSQL(MessagesContract.BatchEntry.CREATE_INDEX);
+        database.execSQL(MessagesContract.CompressedBlockEntry.CREATE_TABLE);
+        database.execSQL(MessagesContract.CompressionDictionaryEntry.CREATE_TABLE);
+        database.execSQL(MessagesContract.HourlyStatsEntry.CREATE_TABLE);
+        database.execSQL(MessagesContract.SenderStatsEntry.CREATE_TABLE);
+        database.execSQL(MessagesContract.DateOrderedChannelEntry.CREATE_TABLE);
+    }
+
+    @Override
+    protected void onUpgrade(SQLiteDatabase database, int fromVersion) {
+        switch (fromVersion + 1) {
+            case VERSION_BATCHES:
+                database.execSQL(MessagesContract.BatchEntry.CREATE_TABLE);
+                database.execSQL(MessagesContract.BatchEntry.CREATE_INDEX);
+                break;
+            case VERSION_COMPRESSION:
+                database.execSQL(MessagesContract.CompressedBlockEntry.CREATE_TABLE);
+                database.execSQL(MessagesContract.CompressionDictionaryEntry.CREATE_TABLE);
+                break;
+            case VERSION_STATS:
+                // the aggregate tables are (re)built by VERSION_DAILY_STATS
+                break;
+            case VERSION_SENDER_INDEX:
+                for (String channel : getChannels(database))
+                    createChannelIndexes(database, channel);
+                break;
+            case VERSION_DATE_ORDERED_CHANNELS:
+                database.execSQL(MessagesContract.DateOrderedChannelEntry.CREATE_TABLE);
+                break;
+            case VERSION_DAILY_STATS:
+                // the tables used to only be keyed by the hour
+                database.execSQL("DROP TABLE IF EXISTS " +
+                        MessagesContract.HourlyStatsEntry.TABLE_NAME);
+                database.execSQL("DROP TABLE IF EXISTS " +
+                        MessagesContract.SenderStatsEntry.TABLE_NAME);
+                database.execSQL(MessagesContract.HourlyStatsEntry.CREATE_TABLE);
+                database.execSQL(MessagesContract.SenderStatsEntry.CREATE_TABLE);
+                for (String channel : getChannels(database))
+                    backfillStats(database, channel);
+                break;
+        }
+    }
+
+    private static String getLocalTimeField(String format) {
+        return "CAST(strftime('" + format + "'," + MessagesContract.MessageEntry.COLUMN_NAME_DATE +
+                "/1000,'unixepoch','localtime') AS INTEGER)";
+    }
+
+    /**
+     * Computes the aggregate tables from the stored messages of the channel. The day and hour
+     * are computed the same way as DateIdentifierHelper does, in local time.
+     */
+    private static void backfillStats(SQLiteDatabase database, String channel) {
+        String tableName = MessagesContract.MessageEntry.getEscapedTableName(channel);
+        String notDeleted = MessagesContract.MessageEntry.COLUMN_NAME_TYPE + "!=" +
+                MessageStorageHelper.TYPE_DELETED;
+        String dateId = "(" + getLocalTimeField("%Y") + "*384+(" + getLocalTimeField("%m") +
+                "-1)*32+" + getLocalTimeField("%d") + ")";
+        database.execSQL("DELETE FROM " + MessagesContract.HourlyStatsEntry.TABLE_NAME +
+                " WHERE " + MessagesContract.HourlyStatsEntry.COLUMN_NAME_CHANNEL + "=?",
+                new Object[]{channel});
+        database.execSQL("DELETE FROM " + MessagesContract.SenderStatsEntry.TABLE_NAME +
+                " WHERE " + MessagesContract.SenderStatsEntry.COLUMN_NAME_CHANNEL + "=?",
+                new Object[]{channel});
+        database.execSQL("INSERT INTO " + MessagesContract.HourlyStatsEntry.TABLE_NAME + " (" +
+                MessagesContract.HourlyStatsEntry.COLUMN_NAME_CHANNEL + "," +
+                MessagesContract.HourlyStatsEntry.COLUMN_NAME_DATE_ID + "," +
+                MessagesContract.HourlyStatsEntry.COLUMN_NAME_HOUR + "," +
+                MessagesContract.HourlyStatsEntry.COLUMN_NAME_TYPE + "," +
+                MessagesContract.HourlyStatsEntry.COLUMN_NAME_COUNT + ") SELECT ?," +
+                dateId + " AS d," + getLocalTimeField("%H") + " AS h," +
+                MessagesContract.MessageEntry.COLUMN_NAME_TYPE + ",COUNT(*) FROM " + tableName +
+                " WHERE " + notDeleted + " GROUP BY d,h," +
+                MessagesContract.MessageEntry.COLUMN_NAME_TYPE, new Object[]{channel});
+        database.execSQL("INSERT INTO " + MessagesContract.SenderStatsEntry.TABLE_NAME + " (" +
+                MessagesContract.SenderStatsEntry.COLUMN_NAME_CHANNEL + "," +
+                MessagesContract.SenderStatsEntry.COLUMN_NAME_DATE_ID + "," +
+                MessagesContract.SenderStatsEntry.COLUMN_NAME_SENDER_UUID + "," +
+                MessagesContract.SenderStatsEntry.COLUMN_NAME_COUNT + ") SELECT ?," +
+                dateId + " AS d," + MessagesContract.MessageEntry.COLUMN_NAME_SENDER_UUID +
+                ",COUNT(*) FROM " + tableName + " WHERE " + notDeleted + " AND " +
+                MessagesContract.MessageEntry.COLUMN_NAME_SENDER_UUID + " IS NOT NULL" +
+                " GROUP BY d," + MessagesContract.MessageEntry.COLUMN_NAME_SENDER_UUID,
+                new Object[]{channel});
+
+        // the nick comes from the serialized sender of the last message of every sender and day
+        SQLiteStatement updateNick = database.compileStatement("UPDATE " +
+                MessagesContract.SenderStatsEntry.TABLE_NAME + " SET " +
+                MessagesContract.SenderStatsEntry.COLUMN_NAME_NICK + "=?4 WHERE " +
+                MessagesContract.SenderStatsEntry.COLUMN_NAME_CHANNEL + "=?1 AND " +
+                MessagesContract.SenderStatsEntry.COLUMN_NAME_DATE_ID + "=?2 AND " +
+                MessagesContract.SenderStatsEntry.COLUMN_NAME_SENDER_UUID + "=?3");
+        Cursor cursor = database.rawQuery("SELECT " +
+                MessagesContract.MessageEntry.COLUMN_NAME_SENDER_UUID + "," +
+                MessagesContract.MessageEntry.COLUMN_NAME_SENDER_DATA + "," + dateId + "," +
+                MessagesContract.MessageEntry._ID + "," +
+                MessagesContract.MessageEntry.COLUMN_NAME_TEXT +
+                " FROM " + tableName + " WHERE " + MessagesContract.MessageEntry._ID +
+                " IN (SELECT MAX(" + MessagesContract.MessageEntry._ID + ") FROM " + tableName +
+                " WHERE " + notDeleted + " AND " +
+                MessagesContract.MessageEntry.COLUMN_NAME_SENDER_UUID + " IS NOT NULL GROUP BY " +
+                dateId + "," + MessagesContract.MessageEntry.COLUMN_NAME_SENDER_UUID + ")" +
+                " ORDER BY " + MessagesContract.MessageEntry._ID, null);
+        CompactedRowReader compactedRows = null;
+        try {
+            while (cursor.moveToNext()) {
+                String senderData;
+                if (cursor.getType(4) == Cursor.FIELD_TYPE_BLOB) {
+                    // compacted row, the sender data is in the compressed block
+                    if (compactedRows == null)
+                        compactedRows = new CompactedRowReader(database, channel);
+                    senderData = compactedRows.getSenderData(
+                            MessageStorageHelper.bytesToLong(cursor.getBlob(4)), cursor.getInt(3));
+                } else {
+                    senderData = cursor.getString(1);
+                }
+                MessageSenderInfo sender = MessageStorageHelper.deserializeSenderInfo(
+                        senderData, null);
+                if (sender == null)
+                    continue;
+                updateNick.bindString(1, channel);
+                updateNick.bindLong(2, cursor.getLong(2));
+                updateNick.bindBlob(3, cursor.getBlob(0));
+                updateNick.bindString(4, sender.getNick());
+                updateNick.executeUpdateDelete();
+                updateNick.clearBindings();
+            }
+        } finally {
+            cursor.close();
+            updateNick.close();
+            if (compactedRows != null)
+                compactedRows.close();
+        }
+    }
+
+    /**
+     * Reads compacted rows the same way SQLiteMessageStorageFile does, keeping the last decoded
+     * block, as the rows are read in id order.
+     */
+    private static class CompactedRowReader {
+
+        private final SQLiteDatabase database;
+        private final String channel;
+        private final MessageTextCodec codec;
+        private long blockId = -1;
+        private MessageTextCodec.Block block;
+
+        CompactedRowReader(SQLiteDatabase database, String channel) {
+            this.database = database;
+            this.channel = channel;
+            MessageTextCodec codec = null;
+            Cursor cursor = database.rawQuery("SELECT " +
+                    MessagesContract.CompressionDictionaryEntry.COLUMN_NAME_DICTIONARY +
+                    " FROM " + MessagesContract.CompressionDictionaryEntry.TABLE_NAME +
+                    " WHERE " + MessagesContract.CompressionDictionaryEntry.COLUMN_NAME_CHANNEL +
+                    "=?", new String[]{channel});
+            if (cursor.moveToFirst())
+                codec = new MessageTextCodec(cursor.getBlob(0));
+            cursor.close();
+            this.codec = codec;
+        }
+
+        String getSenderData(long blockId, int rowId) {
+            if (codec == null)
+                return null;
+            if (blockId != this.blockId) {
+                this.blockId = blockId;
+                block = null;
+                Cursor cursor = database.rawQuery("SELECT " +
+                        MessagesContract.CompressedBlockEntry.COLUMN_NAME_DATA +
+                        " FROM " + MessagesContract.CompressedBlockEntry.TABLE_NAME +
+                        " WHERE " + MessagesContract.CompressedBlockEntry._ID + "=" + blockId,
+                        null);
+                try {
+                    if (cursor.moveToFirst())
+                        block = codec.decodeBlock(cursor.getBlob(0));
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to decode block " + blockId + " of " + channel, e);
+                } finally {
+                    cursor.close();
+                }
+            }
+            int index = (block != null ? block.indexOf(rowId) : -1);
+            return (index != -1 ? block.getSenderData(index) : null);
+        }
+
+        void close() {
+            if (codec != null)
+                codec.close();
+        }
+
+    }
+
+}
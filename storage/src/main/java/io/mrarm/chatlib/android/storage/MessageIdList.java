@@ -0,0 +1,210 @@
+package io.mrarm.chatlib.android.storage;
+
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.RandomAccess;
+
+import io.mrarm.chatlib.dto.MessageId;
+
+/**
+ * A list of message ids stored as packed (fileDateId, rowId) longs. get() creates a new
+ * MessageId every time, which is fine as the ids compare by value; the accessors for the
+ * fields avoid creating them at all. Free space is kept on both ends of the array, so that both
+ * appending and prepending are amortized O(1).
+ */
+class MessageIdList extends AbstractList<MessageId> implements RandomAccess {
+
+    private static final long[] EMPTY = new long[0];
+
+    private long[] values;
+    private int start;
+    private int size;
+
+    MessageIdList() {
+        values = EMPTY;
+    }
+
+    MessageIdList(int capacity) {
+        values = new long[capacity];
+    }
+
+    MessageIdList(MessageIdList other) {
+        values = new long[other.size];
+        System.arraycopy(other.values, other.start, values, 0, other.size);
+        size = other.size;
+    }
+
+    static long pack(long fileDateId, int rowId) {
+        return (fileDateId << 32) | (rowId & 0xffffffffL);
+    }
+
+    private static long pack(MessageId id) {
+        if (!(id instanceof SQLiteMessageStorageApi.MyMessageId))
+            throw new IllegalArgumentException("Invalid message id type");
+        SQLiteMessageStorageApi.MyMessageId m = (SQLiteMessageStorageApi.MyMessageId) id;
+        return pack(m.fileDateId, m.id);
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+
+    /**
+     * Makes sure there is space for the specified number of elements before and after the
+     * current ones, growing the array geometrically.
+     */
+    private void ensureSpace(int before, int after) {
+        int freeBefore = start;
+        int freeAfter = values.length - start - size;
+        if (freeBefore >= before && freeAfter >= after)
+            return;
+        int newStart = Math.max(before, freeBefore < before ? size / 2 + before : freeBefore);
+        int newEnd = newStart + size + Math.max(after, freeAfter < after ? size / 2 + after :
+                freeAfter);
+        long[] newValues = new long[newEnd];
+        System.arraycopy(values, start, newValues, newStart, size);
+        values = newValues;
+        start = newStart;
+    }
+
+    long getFileDateId(int index) {
+        checkIndex(index);
+        return values[start + index] >> 32;
+    }
+
+    int getRowId(int index) {
+        checkIndex(index);
+        return (int) values[start + index];
+    }
+
+    void add(long fileDateId, int rowId) {
+        ensureSpace(0, 1);
+        values[start + size++] = pack(fileDateId, rowId);
+        modCount++;
+    }
+
+    @Override
+    public MessageId get(int index) {
+        return new SQLiteMessageStorageApi.MyMessageId(getFileDateId(index), getRowId(index));
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public MessageId set(int index, MessageId element) {
+        MessageId ret = get(index);
+        values[start + index] = pack(element);
+        return ret;
+    }
+
+    @Override
+    public void add(int index, MessageId element) {
+        if (index < 0 || index > size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        long v = pack(element);
+        if (index == 0 && size > 0) {
+            ensureSpace(1, 0);
+            start--;
+        } else {
+            ensureSpace(0, 1);
+            System.arraycopy(values, start + index, values, start + index + 1, size - index);
+        }
+        values[start + index] = v;
+        size++;
+        modCount++;
+    }
+
+    @Override
+    public MessageId remove(int index) {
+        MessageId ret = get(index);
+        if (index == 0)
+            start++;
+        else
+            System.arraycopy(values, start + index + 1, values, start + index,
+                    size - index - 1);
+        size--;
+        modCount++;
+        return ret;
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends MessageId> c) {
+        return addAll(size, c);
+    }
+
+    @Override
+    public boolean addAll(int index, Collection<? extends MessageId> c) {
+        if (index < 0 || index > size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        int count = c.size();
+        if (count == 0)
+            return false;
+        // copied first, so that an invalid element can't leave the list half changed
+        MessageIdList l;
+        if (c == this) {
+            l = new MessageIdList(this);
+        } else if (c instanceof MessageIdList) {
+            l = (MessageIdList) c;
+        } else {
+            l = new MessageIdList(count);
+            for (MessageId id : c)
+                l.values[l.size++] = pack(id);
+        }
+        int pos;
+        if (index == 0 && size > 0) {
+            ensureSpace(count, 0);
+            start -= count;
+            pos = start;
+        } else {
+            ensureSpace(0, count);
+            System.arraycopy(values, start + index, values, start + index + count,
+                    size - index);
+            pos = start + index;
+        }
+        System.arraycopy(l.values, l.start, values, pos, count);
+        size += count;
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        start = 0;
+        size = 0;
+        modCount++;
+    }
+
+    @Override
+    public int indexOf(Object o) {
+        if (!(o instanceof SQLiteMessageStorageApi.MyMessageId))
+            return -1;
+        long v = pack((MessageId) o);
+        for (int i = 0; i < size; i++) {
+            if (values[start + i] == v)
+                return i;
+        }
+        return -1;
+    }
+
+    @Override
+    public int lastIndexOf(Object o) {
+        if (!(o instanceof SQLiteMessageStorageApi.MyMessageId))
+            return -1;
+        long v = pack((MessageId) o);
+        for (int i = size - 1; i >= 0; i--) {
+            if (values[start + i] == v)
+                return i;
+        }
+        return -1;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return indexOf(o) != -1;
+    }
+
+}
@@ -0,0 +1,13 @@
+package io.mrarm.chatlib.android.storage;
+
+public interface MessageImportListener {
+
+    /**
+     * Called every time a batch of messages has been committed to the storage.
+     * @param committedLines the number of input lines that have been fully stored; pass this as
+     *                       the skipLines argument to resume an interrupted import
+     * @return false to cancel the import
+     */
+    boolean onProgress(long committedLines, long importedMessages);
+
+}
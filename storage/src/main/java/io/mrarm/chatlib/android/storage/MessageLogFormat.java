@@ -0,0 +1,20 @@
+package io.mrarm.chatlib.android.storage;
+
+public enum MessageLogFormat {
+
+    /**
+     * irssi logs, with "--- Log opened" and "--- Day changed" lines providing the date.
+     */
+    IRSSI,
+
+    /**
+     * WeeChat logs, with a full timestamp, the prefix and the text separated by tabs.
+     */
+    WEECHAT,
+
+    /**
+     * ZNC log module logs, one file per day; the date of the file must be supplied separately.
+     */
+    ZNC
+
+}
@@ -0,0 +1,72 @@
+package io.mrarm.chatlib.android.storage;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.mrarm.chatlib.dto.MessageInfo;
+
+/**
+ * Streams a plain text log into the storage. Messages are grouped by the daily file they belong
+ * to and written directly to that file in large transactions.
+ */
+class MessageLogImporter {
+
+    static final int BATCH_SIZE = 5000;
+
+    private final SQLiteMessageStorageApi storage;
+    private final String channel;
+    private final MessageLogParser parser;
+    private final MessageImportListener listener;
+    private final List<MessageInfo> batch = new ArrayList<>(BATCH_SIZE);
+    private long batchDateId = -1;
+    private long importedMessages = 0;
+
+    MessageLogImporter(SQLiteMessageStorageApi storage, String channel, MessageLogParser parser,
+                       MessageImportListener listener) {
+        this.storage = storage;
+        this.channel = channel;
+        this.parser = parser;
+        this.listener = listener;
+    }
+
+    /**
+     * @param skipLines the number of lines that have already been imported previously; they are
+     *                  still parsed, as they may contain the date of the following lines
+     * @return the number of imported messages
+     */
+    long importLog(BufferedReader reader, long skipLines) throws IOException {
+        long lineNo = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNo++;
+            MessageInfo message = parser.parseLine(line);
+            if (message == null || lineNo <= skipLines)
+                continue;
+            long dateId = DateIdentifierHelper.getDateIdentifier(message.getDate().getTime());
+            if (!batch.isEmpty() && (dateId != batchDateId || batch.size() >= BATCH_SIZE)) {
+                if (!flush(lineNo - 1))
+                    return importedMessages;
+            }
+            batchDateId = dateId;
+            batch.add(message);
+            if (Thread.interrupted()) {
+                flush(lineNo);
+                return importedMessages;
+            }
+        }
+        flush(lineNo);
+        return importedMessages;
+    }
+
+    private boolean flush(long committedLines) {
+        if (!batch.isEmpty()) {
+            storage.addMessagesToFile(batchDateId, channel, batch);
+            importedMessages += batch.size();
+            batch.clear();
+        }
+        return listener == null || listener.onProgress(committedLines, importedMessages);
+    }
+
+}
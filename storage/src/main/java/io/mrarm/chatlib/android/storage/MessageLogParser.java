@@ -0,0 +1,337 @@
+package io.mrarm.chatlib.android.storage;
+
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+
+import io.mrarm.chatlib.dto.MessageInfo;
+import io.mrarm.chatlib.dto.MessageSenderInfo;
+import io.mrarm.chatlib.dto.NickChangeMessageInfo;
+import io.mrarm.chatlib.dto.NickPrefixList;
+
+/**
+ * Parses the lines of a plain text IRC log into messages. Parsers are stateful (the date of the
+ * messages often comes from earlier lines), so every line of a log must be passed in order.
+ */
+abstract class MessageLogParser {
+
+    private static final String NICK_PREFIX_CHARS = "~&@%+";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    protected final Calendar calendar = Calendar.getInstance();
+    private final Map<String, UUID> senderUUIDs = new HashMap<>();
+
+    static MessageLogParser create(MessageLogFormat format, Date logDate) {
+        MessageLogParser ret;
+        switch (format) {
+            case IRSSI:
+                ret = new IrssiParser();
+                break;
+            case WEECHAT:
+                ret = new WeechatParser();
+                break;
+            case ZNC:
+                if (logDate == null)
+                    throw new IllegalArgumentException("ZNC logs require the log date");
+                ret = new ZncParser(logDate);
+                break;
+            default:
+                throw new IllegalArgumentException();
+        }
+        if (logDate != null)
+            ret.calendar.setTime(logDate);
+        return ret;
+    }
+
+    /**
+     * @return the message or null if the line doesn't contain a message
+     */
+    abstract MessageInfo parseLine(String line);
+
+    /**
+     * Sets the time of the current day from a "HH:mm" or "HH:mm:ss" string.
+     * @return whether the string was a valid time
+     */
+    protected boolean setTimeOfDay(String str, int start, int end) {
+        int len = end - start;
+        if ((len != 5 && len != 8) || str.charAt(start + 2) != ':' ||
+                (len == 8 && str.charAt(start + 5) != ':'))
+            return false;
+        int hour = parseNumber(str, start);
+        int minute = parseNumber(str, start + 3);
+        int second = (len == 8 ? parseNumber(str, start + 6) : 0);
+        if (hour < 0 || minute < 0 || second < 0)
+            return false;
+        calendar.set(Calendar.HOUR_OF_DAY, hour);
+        calendar.set(Calendar.MINUTE, minute);
+        calendar.set(Calendar.SECOND, second);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return true;
+    }
+
+    private static int parseNumber(String str, int start) {
+        char a = str.charAt(start), b = str.charAt(start + 1);
+        if (a < '0' || a > '9' || b < '0' || b > '9')
+            return -1;
+        return (a - '0') * 10 + (b - '0');
+    }
+
+    protected MessageSenderInfo createSender(String nick, String userHost) {
+        int prefixEnd = 0;
+        while (prefixEnd < nick.length() - 1 && NICK_PREFIX_CHARS.indexOf(nick.charAt(prefixEnd)) != -1)
+            prefixEnd++;
+        NickPrefixList prefixes = prefixEnd > 0 ? new NickPrefixList(nick.substring(0, prefixEnd)) : null;
+        nick = nick.substring(prefixEnd);
+        String user = null, host = null;
+        if (userHost != null) {
+            int iof = userHost.indexOf('@');
+            if (iof != -1) {
+                user = userHost.substring(0, iof);
+                host = userHost.substring(iof + 1);
+            }
+        }
+        // the read path requires senders to have an UUID, derive a stable one from the nick
+        UUID uuid = senderUUIDs.get(nick);
+        if (uuid == null) {
+            uuid = UUID.nameUUIDFromBytes(("import:" + nick).getBytes(UTF_8));
+            senderUUIDs.put(nick, uuid);
+        }
+        return new MessageSenderInfo(nick, user, host, prefixes, uuid);
+    }
+
+    protected MessageInfo createMessage(MessageSenderInfo sender, String text,
+                                        MessageInfo.MessageType type) {
+        MessageInfo.Builder builder = new MessageInfo.Builder(sender, text, type);
+        builder.setDate(calendar.getTime());
+        return builder.build();
+    }
+
+    protected MessageInfo createNickChangeMessage(String nick, String newNick) {
+        return new NickChangeMessageInfo(createSender(nick, null), calendar.getTime(), newNick);
+    }
+
+    /**
+     * Parses the text of a join/part/quit line in the "nick (user@host) has ... (reason)" or
+     * "nick [user@host] has ... [reason]" forms.
+     */
+    protected MessageInfo parseMembershipLine(String text, char open, char close) {
+        int iof = text.indexOf(' ');
+        if (iof == -1)
+            return null;
+        String nick = text.substring(0, iof);
+        String userHost = null;
+        if (iof + 1 < text.length() && text.charAt(iof + 1) == open) {
+            int end = text.indexOf(close, iof);
+            if (end == -1)
+                return null;
+            userHost = text.substring(iof + 2, end);
+            iof = end + 1;
+        }
+        String rest = text.substring(iof).trim();
+        MessageInfo.MessageType type;
+        if (rest.startsWith("has joined"))
+            type = MessageInfo.MessageType.JOIN;
+        else if (rest.startsWith("has left"))
+            type = MessageInfo.MessageType.PART;
+        else if (rest.startsWith("has quit"))
+            type = MessageInfo.MessageType.QUIT;
+        else
+            return null;
+        String reason = null;
+        int reasonStart = rest.indexOf(open);
+        if (reasonStart != -1 && rest.charAt(rest.length() - 1) == close)
+            reason = rest.substring(reasonStart + 1, rest.length() - 1);
+        return createMessage(createSender(nick, userHost), reason, type);
+    }
+
+    protected MessageInfo parseNickChangeLine(String text) {
+        int iof = text.indexOf(" is now known as ");
+        if (iof == -1)
+            return null;
+        return createNickChangeMessage(text.substring(0, iof), text.substring(iof + 17).trim());
+    }
+
+    static class IrssiParser extends MessageLogParser {
+
+        private static final String LOG_OPENED = "--- Log opened ";
+        private static final String DAY_CHANGED = "--- Day changed ";
+
+        private final SimpleDateFormat logOpenedFormat = new SimpleDateFormat(
+                "EEE MMM dd HH:mm:ss yyyy", Locale.US);
+        private final SimpleDateFormat dayChangedFormat = new SimpleDateFormat(
+                "EEE MMM dd yyyy", Locale.US);
+
+        private void setDay(SimpleDateFormat format, String str) {
+            try {
+                Calendar c = Calendar.getInstance();
+                c.setTime(format.parse(str));
+                calendar.set(c.get(Calendar.YEAR), c.get(Calendar.MONTH), c.get(Calendar.DATE));
+            } catch (ParseException ignored) {
+            }
+        }
+
+        @Override
+        MessageInfo parseLine(String line) {
+            if (line.startsWith(LOG_OPENED)) {
+                setDay(logOpenedFormat, line.substring(LOG_OPENED.length()));
+                return null;
+            }
+            if (line.startsWith(DAY_CHANGED)) {
+                setDay(dayChangedFormat, line.substring(DAY_CHANGED.length()));
+                return null;
+            }
+            int iof = line.indexOf(' ');
+            if (iof == -1 || !setTimeOfDay(line, 0, iof))
+                return null;
+            String text = line.substring(iof + 1);
+            if (text.startsWith("<")) {
+                int end = text.indexOf("> ");
+                if (end == -1)
+                    return null;
+                return createMessage(createSender(text.substring(1, end).trim(), null),
+                        text.substring(end + 2), MessageInfo.MessageType.NORMAL);
+            }
+            if (text.startsWith(" * ")) {
+                int end = text.indexOf(' ', 3);
+                if (end == -1)
+                    return null;
+                return createMessage(createSender(text.substring(3, end), null),
+                        text.substring(end + 1), MessageInfo.MessageType.ME);
+            }
+            if (text.startsWith("-!- ")) {
+                text = text.substring(4);
+                MessageInfo ret = parseMembershipLine(text, '[', ']');
+                return ret != null ? ret : parseNickChangeLine(text);
+            }
+            if (text.startsWith("-")) {
+                int end = text.indexOf("- ");
+                if (end == -1)
+                    return null;
+                String nick = text.substring(1, end);
+                int iof2 = nick.indexOf(':');
+                if (iof2 == -1)
+                    iof2 = nick.indexOf('(');
+                if (iof2 != -1)
+                    nick = nick.substring(0, iof2);
+                return createMessage(createSender(nick, null), text.substring(end + 2),
+                        MessageInfo.MessageType.NOTICE);
+            }
+            return null;
+        }
+
+    }
+
+    static class WeechatParser extends MessageLogParser {
+
+        @Override
+        MessageInfo parseLine(String line) {
+            int iof = line.indexOf('\t');
+            int iof2 = (iof == -1 ? -1 : line.indexOf('\t', iof + 1));
+            if (iof != 19 || iof2 == -1 || line.charAt(10) != ' ')
+                return null;
+            try {
+                calendar.set(Integer.parseInt(line.substring(0, 4)),
+                        Integer.parseInt(line.substring(5, 7)) - 1,
+                        Integer.parseInt(line.substring(8, 10)));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (!setTimeOfDay(line, 11, 19))
+                return null;
+            String prefix = line.substring(iof + 1, iof2).trim();
+            String text = line.substring(iof2 + 1);
+            if (prefix.equals("-->") || prefix.equals("<--"))
+                return parseMembershipLine(text, '(', ')');
+            if (prefix.equals("--"))
+                return parseNickChangeLine(text);
+            if (prefix.equals("*")) {
+                int end = text.indexOf(' ');
+                if (end == -1)
+                    return null;
+                return createMessage(createSender(text.substring(0, end), null),
+                        text.substring(end + 1), MessageInfo.MessageType.ME);
+            }
+            if (prefix.isEmpty())
+                return null;
+            return createMessage(createSender(prefix, null), text,
+                    MessageInfo.MessageType.NORMAL);
+        }
+
+    }
+
+    static class ZncParser extends MessageLogParser {
+
+        private final int year;
+        private final int month;
+        private final int day;
+
+        ZncParser(Date logDate) {
+            Calendar c = Calendar.getInstance();
+            c.setTime(logDate);
+            year = c.get(Calendar.YEAR);
+            month = c.get(Calendar.MONTH);
+            day = c.get(Calendar.DATE);
+        }
+
+        @Override
+        MessageInfo parseLine(String line) {
+            int end = line.indexOf("] ");
+            if (!line.startsWith("[") || end == -1)
+                return null;
+            // the lines only have the time, every one of them belongs to the day of the log
+            calendar.set(year, month, day);
+            if (!setTimeOfDay(line, 1, end))
+                return null;
+            String text = line.substring(end + 2);
+            if (text.startsWith("<")) {
+                int nickEnd = text.indexOf("> ");
+                if (nickEnd == -1)
+                    return null;
+                return createMessage(createSender(text.substring(1, nickEnd), null),
+                        text.substring(nickEnd + 2), MessageInfo.MessageType.NORMAL);
+            }
+            if (text.startsWith("-")) {
+                int nickEnd = text.indexOf("- ");
+                if (nickEnd == -1)
+                    return null;
+                return createMessage(createSender(text.substring(1, nickEnd), null),
+                        text.substring(nickEnd + 2), MessageInfo.MessageType.NOTICE);
+            }
+            if (text.startsWith("*** ")) {
+                text = text.substring(4);
+                String verb = null;
+                if (text.startsWith("Joins: "))
+                    verb = "has joined";
+                else if (text.startsWith("Parts: "))
+                    verb = "has left";
+                else if (text.startsWith("Quits: "))
+                    verb = "has quit";
+                if (verb == null)
+                    return parseNickChangeLine(text);
+                text = text.substring(7);
+                int iof = text.indexOf(')');
+                if (iof == -1)
+                    return null;
+                // rewrite into the "nick (user@host) has left (reason)" form
+                return parseMembershipLine(text.substring(0, iof + 1) + " " + verb +
+                        text.substring(iof + 1), '(', ')');
+            }
+            if (text.startsWith("* ")) {
+                int nickEnd = text.indexOf(' ', 2);
+                if (nickEnd == -1)
+                    return null;
+                return createMessage(createSender(text.substring(2, nickEnd), null),
+                        text.substring(nickEnd + 1), MessageInfo.MessageType.ME);
+            }
+            return null;
+        }
+
+    }
+
+}
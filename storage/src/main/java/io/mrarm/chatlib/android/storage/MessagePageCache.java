@@ -0,0 +1,149 @@
+package io.mrarm.chatlib.android.storage;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import io.mrarm.chatlib.dto.MessageFilterOptions;
+import io.mrarm.chatlib.dto.MessageList;
+import io.mrarm.chatlib.dto.MessageListAfterIdentifier;
+
+/**
+ * A small bounded cache of message pages loaded ahead of time. Pages are handed out only once, so
+ * that the caller can freely modify the returned lists.
+ * Every channel has generation counters, which are checked when a page is put into the cache, so
+ * that a page loaded before an invalidation is never cached.
+ */
+class MessagePageCache {
+
+    private final int maxSize;
+    private final Map<Key, MessageList> pages;
+    private final Map<String, ChannelState> channels = new HashMap<>();
+
+    MessagePageCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.pages = new LinkedHashMap<Key, MessageList>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, MessageList> eldest) {
+                return size() > MessagePageCache.this.maxSize;
+            }
+        };
+    }
+
+    private ChannelState getChannelState(String channel) {
+        ChannelState ret = channels.get(channel);
+        if (ret == null) {
+            ret = new ChannelState();
+            channels.put(channel, ret);
+        }
+        return ret;
+    }
+
+    synchronized MessageList take(Key key) {
+        return pages.remove(key);
+    }
+
+    synchronized boolean contains(Key key) {
+        return pages.containsKey(key);
+    }
+
+    synchronized long getGeneration(String channel) {
+        ChannelState state = getChannelState(channel);
+        return ((long) state.generation << 32) | (state.writeGeneration & 0xffffffffL);
+    }
+
+    /**
+     * Puts the page into the cache, unless the channel has been invalidated since the generation
+     * was obtained.
+     */
+    synchronized void put(Key key, MessageList page, long generation) {
+        ChannelState state = getChannelState(key.channel);
+        if (state.generation != (int) (generation >>> 32))
+            return;
+        if (key.isAffectedByWrites() && state.writeGeneration != (int) generation)
+            return;
+        pages.put(key, page);
+    }
+
+    /**
+     * Removes all the cached pages of the channel and cancels pending loads.
+     */
+    synchronized void invalidate(String channel) {
+        getChannelState(channel).generation++;
+        for (Iterator<Key> it = pages.keySet().iterator(); it.hasNext(); ) {
+            if (it.next().channel.equals(channel))
+                it.remove();
+        }
+    }
+
+    /**
+     * Removes the cached pages of the channel that new messages might belong to.
+     */
+    synchronized void invalidateNewest(String channel) {
+        ChannelState state = channels.get(channel);
+        if (state == null)
+            return;
+        state.writeGeneration++;
+        for (Iterator<Key> it = pages.keySet().iterator(); it.hasNext(); ) {
+            Key key = it.next();
+            if (key.channel.equals(channel) && key.isAffectedByWrites())
+                it.remove();
+        }
+    }
+
+    synchronized void clear() {
+        for (ChannelState state : channels.values())
+            state.generation++;
+        pages.clear();
+    }
+
+    private static class ChannelState {
+        int generation;
+        int writeGeneration;
+    }
+
+    static class Key {
+
+        private final String channel;
+        private final int count;
+        private final MessageFilterOptions options;
+        private final MessageListAfterIdentifier after;
+
+        /**
+         * @param options compared by identity, as filter options don't implement equals
+         */
+        Key(String channel, int count, MessageFilterOptions options,
+            MessageListAfterIdentifier after) {
+            this.channel = channel;
+            this.count = count;
+            this.options = options;
+            this.after = after;
+        }
+
+        boolean isAffectedByWrites() {
+            return after == null ||
+                    after instanceof SQLiteMessageStorageApi.MyMessageListNewerIdentifier;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key))
+                return false;
+            Key o = (Key) obj;
+            return channel.equals(o.channel) && count == o.count && options == o.options &&
+                    (after == null ? o.after == null : after.equals(o.after));
+        }
+
+        @Override
+        public int hashCode() {
+            int ret = channel.hashCode();
+            ret = ret * 31 + count;
+            ret = ret * 31 + System.identityHashCode(options);
+            ret = ret * 31 + (after != null ? after.hashCode() : 0);
+            return ret;
+        }
+
+    }
+
+}
@@ -0,0 +1,87 @@
+package io.mrarm.chatlib.android.storage;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public class MessageRetentionPolicy {
+
+    private final long maxTotalBytes;
+    private final int maxAgeDays;
+    private final Map<String, Integer> channelMaxAgeDays;
+    private final File archiveDirectory;
+
+    private MessageRetentionPolicy(long maxTotalBytes, int maxAgeDays,
+                                   Map<String, Integer> channelMaxAgeDays,
+                                   File archiveDirectory) {
+        this.maxTotalBytes = maxTotalBytes;
+        this.maxAgeDays = maxAgeDays;
+        this.channelMaxAgeDays = Collections.unmodifiableMap(channelMaxAgeDays);
+        this.archiveDirectory = archiveDirectory;
+    }
+
+    /**
+     * @return the maximal total size of the daily message files or 0 if unlimited
+     */
+    public long getMaxTotalBytes() {
+        return maxTotalBytes;
+    }
+
+    /**
+     * @return the number of days after which daily files are evicted or 0 if unlimited
+     */
+    public int getMaxAgeDays() {
+        return maxAgeDays;
+    }
+
+    public Map<String, Integer> getChannelMaxAgeDays() {
+        return channelMaxAgeDays;
+    }
+
+    /**
+     * @return the directory evicted daily files are moved to, or null if they are deleted
+     */
+    public File getArchiveDirectory() {
+        return archiveDirectory;
+    }
+
+    public static class Builder {
+
+        private long maxTotalBytes = 0;
+        private int maxAgeDays = 0;
+        private final Map<String, Integer> channelMaxAgeDays = new HashMap<>();
+        private File archiveDirectory;
+
+        public Builder setMaxTotalBytes(long maxTotalBytes) {
+            this.maxTotalBytes = maxTotalBytes;
+            return this;
+        }
+
+        public Builder setMaxAgeDays(int maxAgeDays) {
+            this.maxAgeDays = maxAgeDays;
+            return this;
+        }
+
+        /**
+         * Sets the number of days after which the messages of the specified channel are removed
+         * from the daily files, while keeping the messages of other channels.
+         */
+        public Builder setChannelMaxAgeDays(String channel, int maxAgeDays) {
+            channelMaxAgeDays.put(channel, maxAgeDays);
+            return this;
+        }
+
+        public Builder setArchiveDirectory(File archiveDirectory) {
+            this.archiveDirectory = archiveDirectory;
+            return this;
+        }
+
+        public MessageRetentionPolicy build() {
+            return new MessageRetentionPolicy(maxTotalBytes, maxAgeDays,
+                    new HashMap<>(channelMaxAgeDays), archiveDirectory);
+        }
+
+    }
+
+}
@@ -11,6 +11,7 @@ import java.util.Date;
 import java.util.List;
 import java.util.UUID;
 
+import io.mrarm.chatlib.dto.BatchInfo;
 import io.mrarm.chatlib.dto.ChannelModeMessageInfo;
 import io.mrarm.chatlib.dto.KickMessageInfo;
 import io.mrarm.chatlib.dto.MessageInfo;
@@ -30,16 +31,29 @@ class MessageStorageHelper {
 
     static final int TYPE_DELETED = -1;
 
+    private static final String EMPTY_EXTRA_DATA = "{}";
 
     private static final Gson gson = new Gson();
 
-    static MessageInfo deserializeMessage(MessageSenderInfo sender, Date date, String text,
-                                                 int typeInt, String extraData) {
+    interface BatchResolver {
+
+        BatchInfo getBatch(UUID uuid);
+
+    }
+
+    static MessageInfo.MessageType getMessageType(int typeInt) {
         MessageInfo.MessageType type = MessageInfo.MessageType.NORMAL;
         for (MessageInfo.MessageType t : MessageInfo.MessageType.values()) {
             if (t.asInt() == typeInt)
                 type = t;
         }
+        return type;
+    }
+
+    static MessageInfo deserializeMessage(MessageSenderInfo sender, Date date, String text,
+                                                 int typeInt, String extraData,
+                                                 BatchResolver batchResolver) {
+        MessageInfo.MessageType type = getMessageType(typeInt);
         JsonObject o = gson.fromJson(extraData, JsonObject.class);
         // TODO: These should be moved to builders as well?
         if (type == MessageInfo.MessageType.NICK_CHANGE)
@@ -62,8 +76,11 @@ class MessageStorageHelper {
             builder = new MessageInfo.Builder(sender, text, type);
         }
         builder.setDate(date);
-        if (o.has(PROP_BATCH)) {
-            // TODO: find the batch
+        if (o.has(PROP_BATCH) && batchResolver != null) {
+            BatchInfo batch = batchResolver.getBatch(
+                    UUID.fromString(o.get(PROP_BATCH).getAsString()));
+            if (batch != null)
+                builder.setBatch(batch);
         }
         return builder.build();
     }
@@ -96,6 +113,10 @@ class MessageStorageHelper {
     }
 
     static String serializeExtraData(MessageInfo info) {
+        if (info.getBatch() == null && !(info instanceof NickChangeMessageInfo) &&
+                !(info instanceof ChannelModeMessageInfo) && !(info instanceof KickMessageInfo) &&
+                !(info instanceof TopicWhoTimeMessageInfo))
+            return EMPTY_EXTRA_DATA;
         JsonObject object = new JsonObject();
         if (info.getBatch() != null)
             object.addProperty(PROP_BATCH, info.getBatch().getUUID().toString());
@@ -122,6 +143,24 @@ class MessageStorageHelper {
     }
 
 
+    static String serializeBatchParameters(BatchInfo batch) {
+        return gson.toJson(batch.getParameters());
+    }
+
+    static List<String> deserializeBatchParameters(String parameters) {
+        List<String> ret = new ArrayList<>();
+        if (parameters == null)
+            return ret;
+        for (JsonElement e : gson.fromJson(parameters, JsonArray.class))
+            ret.add(e.getAsString());
+        return ret;
+    }
+
+    static String uuidToHexLiteral(UUID uuid) {
+        return String.format("X'%016x%016x'", uuid.getMostSignificantBits(),
+                uuid.getLeastSignificantBits());
+    }
+
     static byte[] uuidToBytes(UUID uuid) {
         ByteBuffer b = ByteBuffer.wrap(new byte[16]);
         b.putLong(uuid.getMostSignificantBits());
@@ -129,6 +168,14 @@ class MessageStorageHelper {
         return b.array();
     }
 
+    static byte[] longToBytes(long value) {
+        return ByteBuffer.allocate(8).putLong(value).array();
+    }
+
+    static long bytesToLong(byte[] bytes) {
+        return ByteBuffer.wrap(bytes).getLong();
+    }
+
     static UUID bytesToUUID(byte[] bytes) {
         ByteBuffer b = ByteBuffer.wrap(bytes);
         return new UUID(b.getLong(), b.getLong());
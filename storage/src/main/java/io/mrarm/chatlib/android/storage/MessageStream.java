@@ -0,0 +1,104 @@
+package io.mrarm.chatlib.android.storage;
+
+import java.io.Closeable;
+
+import io.mrarm.chatlib.dto.MessageFilterOptions;
+import io.mrarm.chatlib.dto.MessageId;
+import io.mrarm.chatlib.dto.MessageInfo;
+
+/**
+ * A pull-based stream over the history of a channel, going through the daily files in either
+ * direction. Rows are only queried when the consumer asks for more than what has already been
+ * fetched, one chunk at a time, and at most one daily file is referenced at any time.
+ *
+ * moveToNext() does disk IO and must not be called from the main thread. close() can be called
+ * from any thread to cancel the stream; no further chunk is queried afterwards. If a chunk query
+ * is running, close() blocks until it finishes and then releases the cursor and the file
+ * reference.
+ */
+public class MessageStream implements Closeable {
+
+    private final SQLiteMessageStorageApi owner;
+    private final String channel;
+    private final boolean newer;
+    private final MessageFilterOptions filterOptions;
+    private final int chunkSize;
+    private long fileDateId;
+    private final int startAfterId;
+    private boolean started = false;
+    private volatile boolean closed = false;
+    private MessageCursor cursor;
+
+    MessageStream(SQLiteMessageStorageApi owner, String channel, long fileDateId, int afterId,
+                  boolean newer, MessageFilterOptions filterOptions, int chunkSize) {
+        this.owner = owner;
+        this.channel = channel;
+        this.fileDateId = fileDateId;
+        this.startAfterId = afterId;
+        this.newer = newer;
+        this.filterOptions = filterOptions;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Moves to the next message, in the direction the stream was opened with.
+     * @return false if there are no more messages or the stream has been closed
+     */
+    public synchronized boolean moveToNext() {
+        while (!closed) {
+            if (cursor == null) {
+                // the starting file is included, the following ones are entered from their start
+                Long next = owner.getNextFileId(fileDateId, newer, !started);
+                if (next == null)
+                    break;
+                int afterId = (!started && next == fileDateId ? startAfterId : -1);
+                started = true;
+                fileDateId = next;
+                cursor = new MessageCursor(owner.openFileForRead(next), channel, afterId, newer,
+                        filterOptions, chunkSize);
+            }
+            if (cursor.moveToNext())
+                return true;
+            releaseCursor();
+        }
+        close();
+        return false;
+    }
+
+    /**
+     * @throws IllegalStateException if moveToNext() hasn't returned true for the current message
+     */
+    public synchronized MessageInfo getMessage() {
+        requireRow();
+        return cursor.getMessage();
+    }
+
+    /**
+     * @throws IllegalStateException if moveToNext() hasn't returned true for the current message
+     */
+    public synchronized MessageId getMessageId() {
+        requireRow();
+        return new SQLiteMessageStorageApi.MyMessageId(fileDateId, cursor.getId());
+    }
+
+    private void requireRow() {
+        if (cursor == null)
+            throw new IllegalStateException("The stream is not positioned on a message");
+    }
+
+    private void releaseCursor() {
+        cursor.close();
+        cursor.getFile().removeReference();
+        cursor = null;
+    }
+
+    @Override
+    public void close() {
+        closed = true; // stops moveToNext before the next chunk query
+        synchronized (this) {
+            if (cursor != null)
+                releaseCursor();
+        }
+    }
+
+}
@@ -0,0 +1,224 @@
+package io.mrarm.chatlib.android.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses blocks of message texts and sender strings using raw deflate with a preset
+ * dictionary trained on the messages of the channel. Not thread safe.
+ */
+class MessageTextCodec implements Closeable {
+
+    static final int MAX_DICTIONARY_SIZE = 16 * 1024;
+
+    private static final int FORMAT_DEFLATE_DICTIONARY = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final byte[] dictionary;
+    private Deflater deflater;
+    private Inflater inflater;
+    private final byte[] buffer = new byte[8192];
+
+    MessageTextCodec(byte[] dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Builds a dictionary out of the words that would save the most space, with the most
+     * valuable ones at the end (as deflate prefers closer matches).
+     */
+    static byte[] trainDictionary(List<String> samples, int maxSize) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (String sample : samples) {
+            if (sample == null)
+                continue;
+            for (String word : sample.split(" ")) {
+                if (word.length() < 3)
+                    continue;
+                Integer c = counts.get(word);
+                counts.put(word, c == null ? 1 : c + 1);
+            }
+        }
+        List<Map.Entry<String, Integer>> words = new ArrayList<>();
+        for (Map.Entry<String, Integer> e : counts.entrySet()) {
+            if (e.getValue() > 1)
+                words.add(e);
+        }
+        Collections.sort(words, (a, b) -> Long.compare(
+                (long) b.getValue() * b.getKey().length(), (long) a.getValue() * a.getKey().length()));
+        List<byte[]> selected = new ArrayList<>();
+        int size = 0;
+        for (Map.Entry<String, Integer> e : words) {
+            byte[] b = (e.getKey() + " ").getBytes(UTF_8);
+            if (size + b.length > maxSize)
+                continue;
+            selected.add(b);
+            size += b.length;
+        }
+        byte[] ret = new byte[size];
+        int o = size;
+        for (byte[] b : selected) {
+            o -= b.length;
+            System.arraycopy(b, 0, ret, o, b.length);
+        }
+        return ret;
+    }
+
+    private static void writeString(ByteArrayOutputStream stream, String str) {
+        if (str == null) {
+            writeVarInt(stream, 0);
+            return;
+        }
+        byte[] b = str.getBytes(UTF_8);
+        writeVarInt(stream, b.length + 1);
+        stream.write(b, 0, b.length);
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream stream, int value) {
+        while ((value & ~0x7f) != 0) {
+            stream.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        stream.write(value);
+    }
+
+    byte[] encodeBlock(int[] ids, String[] senders, String[] texts, int count) {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        writeVarInt(raw, count);
+        int prevId = 0;
+        for (int i = 0; i < count; i++) {
+            writeVarInt(raw, ids[i] - prevId);
+            prevId = ids[i];
+        }
+        for (int i = 0; i < count; i++)
+            writeString(raw, senders[i]);
+        for (int i = 0; i < count; i++)
+            writeString(raw, texts[i]);
+
+        if (deflater == null)
+            deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        deflater.reset();
+        if (dictionary.length > 0)
+            deflater.setDictionary(dictionary);
+        byte[] input = raw.toByteArray();
+        deflater.setInput(input);
+        deflater.finish();
+        ByteArrayOutputStream ret = new ByteArrayOutputStream(input.length / 2 + 16);
+        ret.write(FORMAT_DEFLATE_DICTIONARY);
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buffer);
+            ret.write(buffer, 0, n);
+        }
+        return ret.toByteArray();
+    }
+
+    Block decodeBlock(byte[] data) throws IOException {
+        if (data.length == 0 || data[0] != FORMAT_DEFLATE_DICTIONARY)
+            throw new IOException("Unsupported block format");
+        if (inflater == null)
+            inflater = new Inflater(true);
+        inflater.reset();
+        if (dictionary.length > 0)
+            inflater.setDictionary(dictionary);
+        inflater.setInput(data, 1, data.length - 1);
+        ByteArrayOutputStream raw = new ByteArrayOutputStream(data.length * 4);
+        try {
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new IOException("Truncated block");
+                raw.write(buffer, 0, n);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+        return new Block(raw.toByteArray());
+    }
+
+    /**
+     * Releases the native zlib state right away instead of waiting for the finalizer. The codec
+     * stays usable, the deflater and inflater are created again when they are needed.
+     */
+    @Override
+    public void close() {
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+    }
+
+    static class Block {
+
+        private final int[] ids;
+        private final String[] senders;
+        private final String[] texts;
+
+        private int offset;
+
+        private Block(byte[] raw) {
+            int count = readVarInt(raw);
+            ids = new int[count];
+            senders = new String[count];
+            texts = new String[count];
+            int prevId = 0;
+            for (int i = 0; i < count; i++)
+                ids[i] = prevId = prevId + readVarInt(raw);
+            for (int i = 0; i < count; i++)
+                senders[i] = readString(raw);
+            for (int i = 0; i < count; i++)
+                texts[i] = readString(raw);
+        }
+
+        private int readVarInt(byte[] raw) {
+            int ret = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = raw[offset++];
+                ret |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0)
+                    return ret;
+            }
+        }
+
+        private String readString(byte[] raw) {
+            int len = readVarInt(raw);
+            if (len == 0)
+                return null;
+            String ret = new String(raw, offset, len - 1, UTF_8);
+            offset += len - 1;
+            return ret;
+        }
+
+        /**
+         * @return the index of the message with the specified id or -1 if it is not in the block
+         */
+        int indexOf(int id) {
+            int ret = Arrays.binarySearch(ids, id);
+            return ret >= 0 ? ret : -1;
+        }
+
+        String getSenderData(int index) {
+            return senders[index];
+        }
+
+        String getText(int index) {
+            return texts[index];
+        }
+
+    }
+
+}
@@ -0,0 +1,11 @@
+package io.mrarm.chatlib.android.storage;
+
+public interface MessageUpgradeListener {
+
+    /**
+     * Called after every daily file that has been checked by the background upgrade.
+     * @return false to stop the upgrade, it will continue from the next file the next time
+     */
+    boolean onProgress(int processedFiles, int totalFiles);
+
+}
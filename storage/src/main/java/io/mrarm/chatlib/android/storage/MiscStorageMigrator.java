@@ -0,0 +1,33 @@
+package io.mrarm.chatlib.android.storage;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import io.mrarm.chatlib.android.storage.contract.ChannelDataContract;
+
+class MiscStorageMigrator extends DatabaseMigrator {
+
+    private static final int CURRENT_VERSION = 2;
+
+    @Override
+    int getCurrentVersion() {
+        return CURRENT_VERSION;
+    }
+
+    @Override
+    protected void onCreate(SQLiteDatabase database) {
+        database.execSQL(ChannelDataContract.ChannelEntry.CREATE_TABLE);
+    }
+
+    @Override
+    protected void onUpgrade(SQLiteDatabase database, int fromVersion) {
+        switch (fromVersion) {
+            case 1:
+                // the first schema predates migrations and can't be converted
+                database.execSQL("DROP TABLE IF EXISTS " +
+                        ChannelDataContract.ChannelEntry.TABLE_NAME);
+                database.execSQL(ChannelDataContract.ChannelEntry.CREATE_TABLE);
+                break;
+        }
+    }
+
+}
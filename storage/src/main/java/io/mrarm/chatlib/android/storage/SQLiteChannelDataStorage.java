@@ -5,6 +5,9 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteStatement;
 
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Future;
 
 import io.mrarm.chatlib.android.storage.contract.ChannelDataContract;
@@ -16,34 +19,25 @@ public class SQLiteChannelDataStorage implements ChannelDataStorage {
     private SQLiteMiscStorage storage;
     private SQLiteStatement createChannelStatement;
     private SQLiteStatement updateTopicStatement;
+    // only accessed from the storage executor
+    private final Map<String, StoredData> preloadedData = new HashMap<>();
 
     public SQLiteChannelDataStorage(SQLiteMiscStorage storage) {
         this.storage = storage;
     }
 
-    @Override
-    public Future<StoredData> getOrCreateChannelData(String channel) {
-        return storage.getExecutor().queue(() -> {
-            SQLiteDatabase db = storage.getDatabase();
-            Cursor cursor = db.rawQuery(
-                    "SELECT " + ChannelDataContract.ChannelEntry.COLUMN_NAME_TOPIC + "," +
-                            ChannelDataContract.ChannelEntry.COLUMN_NAME_TOPIC_SET_BY + "," +
-                            ChannelDataContract.ChannelEntry.COLUMN_NAME_TOPIC_SET_ON +
-                            " FROM " + ChannelDataContract.ChannelEntry.TABLE_NAME +
-                            " WHERE " + ChannelDataContract.ChannelEntry.COLUMN_NAME_CHANNEL
-                            + "=?1",
-                    new String[] { channel });
-            if (!cursor.moveToFirst()) {
-                if (createChannelStatement == null)
-                    createChannelStatement = db.compileStatement("INSERT INTO " +
-                            ChannelDataContract.ChannelEntry.TABLE_NAME + " (" +
-                            ChannelDataContract.ChannelEntry.COLUMN_NAME_CHANNEL + ")" +
-                            "VALUES (?1)");
-                createChannelStatement.bindString(1, channel);
-                createChannelStatement.executeInsert();
-                createChannelStatement.clearBindings();
+    private StoredData readChannelData(SQLiteDatabase db, String channel) {
+        Cursor cursor = db.rawQuery(
+                "SELECT " + ChannelDataContract.ChannelEntry.COLUMN_NAME_TOPIC + "," +
+                        ChannelDataContract.ChannelEntry.COLUMN_NAME_TOPIC_SET_BY + "," +
+                        ChannelDataContract.ChannelEntry.COLUMN_NAME_TOPIC_SET_ON +
+                        " FROM " + ChannelDataContract.ChannelEntry.TABLE_NAME +
+                        " WHERE " + ChannelDataContract.ChannelEntry.COLUMN_NAME_CHANNEL
+                        + "=?1",
+                new String[] { channel });
+        try {
+            if (!cursor.moveToFirst())
                 return null;
-            }
             int topicColumn = cursor.getColumnIndex(
                     ChannelDataContract.ChannelEntry.COLUMN_NAME_TOPIC);
             int topicSetByColumn = cursor.getColumnIndex(
@@ -55,6 +49,58 @@ public class SQLiteChannelDataStorage implements ChannelDataStorage {
                     cursor.getString(topicSetByColumn), null);
             long topicSetOn = cursor.getLong(topicSetOnColumn);
             return new StoredData(topic, topicSetBy, new Date(topicSetOn * 1000L));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void prepareStatements(SQLiteDatabase db) {
+        if (createChannelStatement == null)
+            createChannelStatement = db.compileStatement("INSERT INTO " +
+                    ChannelDataContract.ChannelEntry.TABLE_NAME + " (" +
+                    ChannelDataContract.ChannelEntry.COLUMN_NAME_CHANNEL + ")" +
+                    "VALUES (?1)");
+        if (updateTopicStatement == null)
+            updateTopicStatement = db.compileStatement(
+                    "UPDATE " + ChannelDataContract.ChannelEntry.TABLE_NAME +
+                    " SET " + ChannelDataContract.ChannelEntry.COLUMN_NAME_TOPIC + "=?2, " +
+                    ChannelDataContract.ChannelEntry.COLUMN_NAME_TOPIC_SET_BY + "=?3, " +
+                    ChannelDataContract.ChannelEntry.COLUMN_NAME_TOPIC_SET_ON + "=?4" +
+                    " WHERE " + ChannelDataContract.ChannelEntry.COLUMN_NAME_CHANNEL + "=?1");
+    }
+
+    /**
+     * Loads the data of the specified channels and compiles the statements in the background,
+     * so that joining the channels doesn't have to wait for the database.
+     */
+    public Future<Void> preloadChannelData(List<String> channels) {
+        return storage.getExecutor().queue(() -> {
+            SQLiteDatabase db = storage.getDatabase();
+            prepareStatements(db);
+            for (String channel : channels) {
+                StoredData data = readChannelData(db, channel);
+                if (data != null)
+                    preloadedData.put(channel, data);
+            }
+            return null;
+        }, null, null);
+    }
+
+    @Override
+    public Future<StoredData> getOrCreateChannelData(String channel) {
+        return storage.getExecutor().queue(() -> {
+            StoredData preloaded = preloadedData.remove(channel);
+            if (preloaded != null)
+                return preloaded;
+            SQLiteDatabase db = storage.getDatabase();
+            StoredData ret = readChannelData(db, channel);
+            if (ret == null) {
+                prepareStatements(db);
+                createChannelStatement.bindString(1, channel);
+                createChannelStatement.executeInsert();
+                createChannelStatement.clearBindings();
+            }
+            return ret;
         }, null, null);
     }
 
@@ -62,14 +108,8 @@ public class SQLiteChannelDataStorage implements ChannelDataStorage {
     public Future<Void> updateTopic(String channel, String topic, MessageSenderInfo setBy,
                                     Date setOn) {
         return storage.getExecutor().queue(() -> {
-            SQLiteDatabase db = storage.getDatabase();
-            if (updateTopicStatement == null)
-                updateTopicStatement = db.compileStatement(
-                        "UPDATE " + ChannelDataContract.ChannelEntry.TABLE_NAME +
-                        " SET " + ChannelDataContract.ChannelEntry.COLUMN_NAME_TOPIC + "=?2, " +
-                        ChannelDataContract.ChannelEntry.COLUMN_NAME_TOPIC_SET_BY + "=?3, " +
-                        ChannelDataContract.ChannelEntry.COLUMN_NAME_TOPIC_SET_ON + "=?4" +
-                        " WHERE " + ChannelDataContract.ChannelEntry.COLUMN_NAME_CHANNEL + "=?1");
+            preloadedData.remove(channel);
+            prepareStatements(storage.getDatabase());
             updateTopicStatement.bindString(1, channel);
             updateTopicStatement.bindString(2, topic);
             if (setBy != null)
@@ -1,6 +1,7 @@
 package io.mrarm.chatlib.android.storage;
 
 import android.os.Handler;
+import android.os.Process;
 
 import io.mrarm.chatlib.ResponseCallback;
 import io.mrarm.chatlib.ResponseErrorCallback;
@@ -13,39 +14,78 @@ import io.mrarm.chatlib.message.MessageListener;
 import io.mrarm.chatlib.message.WritableMessageStorageApi;
 import io.mrarm.chatlib.util.SimpleRequestExecutor;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
 import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.Future;
 
 public class SQLiteMessageStorageApi implements WritableMessageStorageApi {
 
     private static final MyMessageIdParser MESSAGE_ID_PARSER = new MyMessageIdParser();
 
-    private static final SimpleDateFormat fileNameFormat = new SimpleDateFormat("'messages-'yyyy-MM-dd'.db'", Locale.getDefault());
+    private static final int PREFETCH_CACHE_SIZE = 8;
+
+    private static final long RETENTION_INITIAL_DELAY = 60 * 1000; // a minute
+    private static final long RETENTION_INTERVAL = 60 * 60 * 1000; // an hour
+    private static final long WARM_UP_HOLD_TIME = 5 * 60 * 1000; // 5 minutes
+    private static final long UPGRADE_INITIAL_DELAY = 2 * 60 * 1000; // 2 minutes
+    private static final long UPGRADE_RETRY_DELAY = 10 * 60 * 1000; // 10 minutes
+    private static final long UPGRADE_FILE_INTERVAL = 250;
+    private static final int UPGRADE_INDEX_SAVE_INTERVAL = 16;
 
     private final Handler handler = new Handler();
-    private final SimpleRequestExecutor executor = new SimpleRequestExecutor();
+    private final StorageRequestScheduler scheduler = new StorageRequestScheduler();
+    private final SimpleRequestExecutor bulkExecutor = new SimpleRequestExecutor();
+    private final SimpleRequestExecutor prefetchExecutor = new SimpleRequestExecutor();
+    private final SimpleRequestExecutor upgradeExecutor = new SimpleRequestExecutor();
     private final List<MessageListener> globalListeners = new ArrayList<>();
     private final Map<String, List<MessageListener>> listeners = new HashMap<>();
     final Map<Long, SQLiteMessageStorageFile> files = new HashMap<>();
-    private final SortedSet<Long> availableFilesAsc = new TreeSet<>();
-    private final SortedSet<Long> availableFilesDesc = new TreeSet<>(Collections.reverseOrder());
+    // concurrent sets, as they are read by background loads while new files are being added
+    private final NavigableSet<Long> availableFilesAsc = new ConcurrentSkipListSet<>();
+    private final NavigableSet<Long> availableFilesDesc = new ConcurrentSkipListSet<>(Collections.reverseOrder());
     private final File directory;
+    private final MessageFileIndex fileIndex;
+    private final ChannelStatsStore statsStore;
+    private final DateIdentifierHelper.CurrentDayCache currentDay =
+            new DateIdentifierHelper.CurrentDayCache();
     private SQLiteMessageStorageFile currentFile;
+    private volatile MessageRetentionPolicy retentionPolicy;
+    private final Map<String, Long> channelRetentionCheckedUntil = new HashMap<>();
+    private final Runnable retentionRunnable = this::runScheduledRetention;
+    private final Runnable upgradeRunnable = () -> upgradeFiles(null, null, null);
+    private final Object upgradeLock = new Object();
+    private final Object warmUpLock = new Object();
+    private SQLiteMessageStorageFile warmUpFile;
+    private final Runnable releaseWarmUpRunnable = this::releaseWarmUpFile;
+    private boolean upgradeRunning = false;
+    private volatile boolean closed = false;
+    private volatile MessageDeduplicator deduplicator;
+    private final MessagePageCache prefetchCache = new MessagePageCache(PREFETCH_CACHE_SIZE);
+    private volatile boolean prefetchEnabled = false;
 
     public SQLiteMessageStorageApi(File directory) {
         this.directory = directory;
+        this.fileIndex = new MessageFileIndex(directory);
+        this.statsStore = new ChannelStatsStore(directory);
         open();
     }
 
@@ -53,20 +93,12 @@ public class SQLiteMessageStorageApi implements WritableMessageStorageApi {
         return handler;
     }
 
-    private long getDateIdentifier(Date date) {
-        Calendar c = Calendar.getInstance();
-        c.setTime(date);
-        return c.get(Calendar.DATE) + c.get(Calendar.MONTH) * 32 + c.get(Calendar.YEAR) * 32 * 12;
+    ChannelStatsStore getStatsStore() {
+        return statsStore;
     }
 
     private File getFilePathFor(long dateId) {
-        Calendar c = Calendar.getInstance();
-        c.set((int) (dateId / 32 / 12), (int) ((dateId / 32) % 12), (int) (dateId % 32));
-        return new File(directory, fileNameFormat.format(c.getTime()));
-    }
-
-    private long getDateIdFromFileName(String fileName) throws ParseException {
-        return getDateIdentifier(fileNameFormat.parse(fileName));
+        return new File(directory, DateIdentifierHelper.getFileName(dateId));
     }
 
     private SQLiteMessageStorageFile openFileFor(long dateId, boolean readOnly) {
@@ -74,9 +106,10 @@ public class SQLiteMessageStorageApi implements WritableMessageStorageApi {
             SQLiteMessageStorageFile file = files.get(dateId);
             if (file != null && file.addReference())
                 return file;
-            if (!readOnly) {
-                availableFilesAsc.add(dateId);
+            if (!readOnly && availableFilesAsc.add(dateId)) {
                 availableFilesDesc.add(dateId);
+                fileIndex.put(dateId, 0);
+                fileIndex.save();
             }
             file = new SQLiteMessageStorageFile(this, dateId, getFilePathFor(dateId), readOnly);
             file.addReference();
@@ -85,58 +118,470 @@ public class SQLiteMessageStorageApi implements WritableMessageStorageApi {
         }
     }
 
-    private SQLiteMessageStorageFile openFileFor(Date date, boolean readOnly) {
-        return openFileFor(getDateIdentifier(date), readOnly);
+    SQLiteMessageStorageFile openFileForRead(long dateId) {
+        return openFileFor(dateId, true);
+    }
+
+    /**
+     * @return the closest available file after the specified one in the specified direction, or
+     * null if there is none
+     */
+    Long getNextFileId(long dateId, boolean newer, boolean inclusive) {
+        SortedSet<Long> set;
+        if (newer)
+            set = availableFilesAsc.tailSet(inclusive ? dateId : dateId + 1);
+        else
+            set = availableFilesDesc.tailSet(inclusive ? dateId : dateId - 1);
+        return set.isEmpty() ? null : set.first();
     }
 
     public void open() {
+        synchronized (upgradeLock) {
+            closed = false;
+        }
+        scheduler.open();
+        handler.removeCallbacks(upgradeRunnable);
+        handler.postDelayed(upgradeRunnable, UPGRADE_INITIAL_DELAY);
         synchronized (files) {
             directory.mkdirs();
             availableFilesAsc.clear();
             availableFilesDesc.clear();
-            for (File child : directory.listFiles()) {
-                if (child.isFile()) {
+            if (!fileIndex.load()) {
+                // first start with this storage format, build the index right away
+                reconcileFileIndex();
+                return;
+            }
+            availableFilesAsc.addAll(fileIndex.getDateIds());
+            availableFilesDesc.addAll(availableFilesAsc);
+        }
+        bulkExecutor.queue(() -> {
+            reconcileFileIndex();
+            return null;
+        }, null, null);
+    }
+
+    /**
+     * Lists the storage directory and brings the file index and the available file lists in sync
+     * with what is actually on the disk.
+     */
+    private void reconcileFileIndex() {
+        File[] children = directory.listFiles();
+        if (children == null)
+            return;
+        Map<Long, Long> found = new HashMap<>();
+        for (File child : children) {
+            long dateId = DateIdentifierHelper.parseFileName(child.getName());
+            if (dateId != -1 && child.isFile())
+                found.put(dateId, child.length());
+        }
+        synchronized (files) {
+            // files created after the listing was made must be kept
+            for (long dateId : availableFilesAsc) {
+                if (!found.containsKey(dateId) && files.containsKey(dateId))
+                    found.put(dateId, fileIndex.getSize(dateId));
+            }
+            availableFilesAsc.retainAll(found.keySet());
+            availableFilesDesc.retainAll(found.keySet());
+            availableFilesAsc.addAll(found.keySet());
+            availableFilesDesc.addAll(found.keySet());
+            if (fileIndex.replace(found))
+                fileIndex.save();
+        }
+    }
+
+    void updateFileSize(long dateId, long size) {
+        if (fileIndex.contains(dateId))
+            fileIndex.put(dateId, size);
+    }
+
+    void updateFileSchemaVersion(long dateId, int version) {
+        fileIndex.setSchemaVersion(dateId, version);
+    }
+
+    /**
+     * Waits between two file upgrades, or until the storage is closed.
+     * @return false if the storage has been closed
+     */
+    private boolean pauseUpgrade() throws InterruptedException {
+        synchronized (upgradeLock) {
+            if (!closed)
+                upgradeLock.wait(UPGRADE_FILE_INTERVAL);
+            return !closed;
+        }
+    }
+
+    private int upgradeFilesImpl(MessageUpgradeListener listener) {
+        synchronized (upgradeLock) {
+            if (closed)
+                return 0;
+            upgradeRunning = true;
+        }
+        try {
+            return upgradePendingFiles(listener);
+        } finally {
+            synchronized (upgradeLock) {
+                upgradeRunning = false;
+                upgradeLock.notifyAll();
+            }
+        }
+    }
+
+    private int upgradePendingFiles(MessageUpgradeListener listener) {
+        List<Long> pending = new ArrayList<>();
+        // newest first, as these are the most likely to be read
+        for (long dateId : availableFilesDesc) {
+            if (fileIndex.getSchemaVersion(dateId) < MessageFileMigrator.CURRENT_VERSION)
+                pending.add(dateId);
+        }
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        int processed = 0;
+        boolean skipped = false;
+        try {
+            for (long dateId : pending) {
+                // let the requests of the app go first
+                if (!scheduler.awaitIdle() || closed)
+                    break;
+                if (availableFilesAsc.contains(dateId)) {
+                    SQLiteMessageStorageFile file = openFileFor(dateId, true);
                     try {
-                        long dateId = getDateIdFromFileName(child.getName());
-                        availableFilesAsc.add(dateId);
-                        availableFilesDesc.add(dateId);
-                    } catch (ParseException ignored) {
+                        if (!file.upgrade())
+                            skipped = true; // in use, see SQLiteMessageStorageFile.upgrade
+                    } finally {
+                        file.removeReference();
                     }
                 }
+                processed++;
+                if (processed % UPGRADE_INDEX_SAVE_INTERVAL == 0)
+                    fileIndex.save();
+                if (listener != null && !listener.onProgress(processed, pending.size()))
+                    break;
+                if (!pauseUpgrade())
+                    break;
+            }
+        } catch (InterruptedException ignored) {
+        } finally {
+            fileIndex.save();
+        }
+        if (skipped && !closed) {
+            handler.removeCallbacks(upgradeRunnable);
+            handler.postDelayed(upgradeRunnable, UPGRADE_RETRY_DELAY);
+        }
+        return processed;
+    }
+
+    /**
+     * Upgrades the daily files created by older versions to the current schema, one file at a
+     * time and only while no other requests are waiting. Older files are readable in their
+     * original format until then, and a file is also upgraded when it is opened for writing.
+     * The schema version of every file is remembered in the file index, so an interrupted
+     * upgrade continues where it left off. This is started automatically a while after the
+     * storage is opened. Files which are being read at the moment are skipped, and another
+     * upgrade is then scheduled for later. close() stops the upgrade.
+     * @param listener optional progress listener, which can also stop the upgrade
+     * @return a future resolving to the number of files that have been checked
+     */
+    public Future<Integer> upgradeFiles(MessageUpgradeListener listener,
+                                        ResponseCallback<Integer> callback,
+                                        ResponseErrorCallback errorCallback) {
+        return upgradeExecutor.queue(() -> upgradeFilesImpl(listener), callback, errorCallback);
+    }
+
+    /**
+     * Removes a daily file from the storage, or moves it to the archive directory if one is
+     * specified. Files which are currently in use are left alone. The file list stays locked
+     * until the file is gone, so that it can't be opened (and created again) in the meantime.
+     * @return whether the file has been evicted
+     */
+    private boolean evictFile(long dateId, File archiveDirectory) {
+        synchronized (files) {
+            SQLiteMessageStorageFile file = files.get(dateId);
+            if (file != null) {
+                if (!file.closeIfUnused())
+                    return false;
+                files.remove(dateId);
             }
+            File path = getFilePathFor(dateId);
+            boolean removed;
+            if (archiveDirectory != null) {
+                archiveDirectory.mkdirs();
+                removed = path.renameTo(new File(archiveDirectory, path.getName()));
+            } else {
+                removed = path.delete() || !path.exists();
+            }
+            if (!removed)
+                return false; // keep the file listed, it is still there
+            new File(path.getPath() + "-journal").delete();
+            availableFilesAsc.remove(dateId);
+            availableFilesDesc.remove(dateId);
+            fileIndex.remove(dateId);
+            statsStore.removeFile(dateId);
+            return true;
         }
     }
 
+    private void applyRetentionPolicyImpl() {
+        MessageRetentionPolicy policy = retentionPolicy;
+        if (policy == null)
+            return;
+        long now = System.currentTimeMillis();
+        long todayId = currentDay.getDateIdentifier(now);
+        List<Long> fileIds;
+        synchronized (files) {
+            fileIds = new ArrayList<>(availableFilesAsc);
+            for (long dateId : files.keySet())
+                updateFileSize(dateId, getFilePathFor(dateId).length());
+        }
+
+        long totalSize = 0;
+        for (long dateId : fileIds)
+            totalSize += fileIndex.getSize(dateId);
+        long minDateId = policy.getMaxAgeDays() > 0 ? DateIdentifierHelper.getDateIdentifier(
+                now - policy.getMaxAgeDays() * DateIdentifierHelper.MILLIS_PER_DAY) : -1;
+        boolean changed = false;
+        for (long dateId : fileIds) {
+            if (dateId >= todayId)
+                break;
+            boolean overQuota = policy.getMaxTotalBytes() > 0 &&
+                    totalSize > policy.getMaxTotalBytes();
+            if (dateId >= minDateId && !overQuota)
+                break;
+            long size = fileIndex.getSize(dateId);
+            if (evictFile(dateId, policy.getArchiveDirectory())) {
+                totalSize -= size;
+                changed = true;
+            }
+        }
+        if (changed) {
+            fileIndex.save();
+            prefetchCache.clear();
+        }
+
+        synchronized (channelRetentionCheckedUntil) {
+            for (Map.Entry<String, Integer> rule : policy.getChannelMaxAgeDays().entrySet()) {
+                long channelMinDateId = DateIdentifierHelper.getDateIdentifier(
+                        now - rule.getValue() * DateIdentifierHelper.MILLIS_PER_DAY);
+                Long checkedUntil = channelRetentionCheckedUntil.get(rule.getKey());
+                for (long dateId : fileIds) {
+                    if (dateId >= channelMinDateId || dateId >= todayId)
+                        break;
+                    if ((checkedUntil != null && dateId < checkedUntil) ||
+                            !availableFilesAsc.contains(dateId))
+                        continue;
+                    SQLiteMessageStorageFile file = openFileFor(dateId, false);
+                    try {
+                        if (file.removeChannel(rule.getKey()))
+                            file.vacuum();
+                    } finally {
+                        file.removeReference();
+                    }
+                }
+                channelRetentionCheckedUntil.put(rule.getKey(), channelMinDateId);
+            }
+        }
+    }
+
+    private void runScheduledRetention() {
+        applyRetentionPolicy(null, null);
+        handler.postDelayed(retentionRunnable, RETENTION_INTERVAL);
+    }
+
+    /**
+     * Sets the retention policy, which is then applied periodically in the background. The
+     * current day's file is never evicted. Pass null to keep all messages forever.
+     */
+    public void setRetentionPolicy(MessageRetentionPolicy policy) {
+        retentionPolicy = policy;
+        synchronized (channelRetentionCheckedUntil) {
+            channelRetentionCheckedUntil.clear();
+        }
+        handler.removeCallbacks(retentionRunnable);
+        if (policy != null)
+            handler.postDelayed(retentionRunnable, RETENTION_INITIAL_DELAY);
+    }
+
+    public MessageRetentionPolicy getRetentionPolicy() {
+        return retentionPolicy;
+    }
+
+    /**
+     * Applies the retention policy right away. This runs on the same background thread as
+     * exports, imports and compaction, never on the thread storing new messages.
+     */
+    public Future<Void> applyRetentionPolicy(ResponseCallback<Void> callback,
+                                             ResponseErrorCallback errorCallback) {
+        return bulkExecutor.queue(() -> {
+            applyRetentionPolicyImpl();
+            return null;
+        }, callback, errorCallback);
+    }
+
+    /**
+     * Closes all the files. A running upgrade is stopped first, which waits for the file that is
+     * being upgraded at the moment.
+     */
     public void close() {
+        handler.removeCallbacks(retentionRunnable);
+        synchronized (upgradeLock) {
+            closed = true;
+            upgradeLock.notifyAll();
+        }
+        scheduler.close();
+        synchronized (upgradeLock) {
+            while (upgradeRunning) {
+                try {
+                    upgradeLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        handler.removeCallbacks(upgradeRunnable);
+        synchronized (warmUpLock) {
+            // the file is closed below along with the others
+            handler.removeCallbacks(releaseWarmUpRunnable);
+            warmUpFile = null;
+        }
         synchronized (files) {
             for (SQLiteMessageStorageFile file : files.values()) {
                 file.close(false);
             }
             files.clear();
         }
+        statsStore.close();
+        fileIndex.save();
     }
 
     @Override
     public Future<Void> addMessage(String channel, MessageInfo messageInfo, ResponseCallback<Void> callback, ResponseErrorCallback errorCallback) {
-        return executor.queue(() -> {
-            Date d = new Date();
-            SQLiteMessageStorageFile file = openFileFor(d, false);
+        return scheduler.queueWrite(() -> {
+            long now = System.currentTimeMillis();
+            if (isDuplicateMessage(channel, messageInfo, now))
+                return null;
+            long dateId = currentDay.getDateIdentifier(now);
+            SQLiteMessageStorageFile file = openFileFor(dateId, false);
             long msgId = file.addMessage(channel, messageInfo);
-            MessageId mgsIdObj = new MyMessageId(getDateIdentifier(d), (int) msgId);
             file.removeReference();
-            synchronized (listeners) {
-                for (MessageListener listener : globalListeners)
-                    listener.onMessage(channel, messageInfo, mgsIdObj);
-                if (listeners.containsKey(channel)) {
-                    for (MessageListener listener : listeners.get(channel))
-                        listener.onMessage(channel, messageInfo, mgsIdObj);
+            prefetchCache.invalidateNewest(channel);
+            notifyMessageListeners(channel, messageInfo, dateId, (int) msgId);
+            return null;
+        }, callback, errorCallback);
+    }
+
+    /**
+     * Enables dropping messages that are already stored (such as ones replayed by a bouncer after
+     * a reconnect) if they are at most the specified number of hours old. Pass 0 to disable.
+     */
+    public void setDeduplicationWindow(int hours) {
+        deduplicator = hours > 0 ? new MessageDeduplicator(hours * 60L * 60L * 1000L) : null;
+    }
+
+    /**
+     * @return the number of duplicate messages that have been dropped since deduplication was
+     * enabled
+     */
+    public long getSuppressedDuplicateCount() {
+        MessageDeduplicator d = deduplicator;
+        return d != null ? d.getSuppressedCount() : 0;
+    }
+
+    /**
+     * @return the number of filter hits which turned out not to be duplicates after the lookup
+     */
+    public long getDeduplicationFalsePositiveCount() {
+        MessageDeduplicator d = deduplicator;
+        return d != null ? d.getFalsePositiveCount() : 0;
+    }
+
+    /**
+     * Creates the deduplication filter of the channel and seeds it with the messages stored in
+     * the deduplication window in the background, so that the write which needs the filter first
+     * doesn't have to scan the window. Must be called on the write lane.
+     */
+    private MessageDeduplicator.ChannelFilter createDeduplicationFilter(
+            MessageDeduplicator deduplicator, String channel, long now) {
+        MessageDeduplicator.ChannelFilter filter = deduplicator.createChannelFilter(channel, now);
+        long since = now - deduplicator.getWindowMillis();
+        prefetchExecutor.queue(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            for (long dateId : availableFilesAsc.tailSet(DateIdentifierHelper.getDateIdentifier(since))) {
+                SQLiteMessageStorageFile file = openFileFor(dateId, true);
+                try {
+                    file.addFingerprints(channel, since, filter);
+                } finally {
+                    file.removeReference();
                 }
             }
+            filter.setSeeded();
             return null;
-        }, callback, errorCallback);
+        }, null, null);
+        return filter;
+    }
+
+    private boolean isDuplicateMessage(String channel, MessageInfo messageInfo, long now) {
+        MessageDeduplicator deduplicator = this.deduplicator;
+        if (deduplicator == null)
+            return false;
+        long date = messageInfo.getDate().getTime();
+        if (date < now - deduplicator.getWindowMillis())
+            return false;
+        MessageDeduplicator.ChannelFilter filter = deduplicator.getChannelFilter(channel, now);
+        if (filter == null)
+            filter = createDeduplicationFilter(deduplicator, channel, now);
+        long fingerprint = MessageDeduplicator.fingerprint(messageInfo);
+        // every message is looked up until the filter has been seeded
+        boolean seeded = filter.isSeeded();
+        if (!seeded || filter.mightContain(fingerprint)) {
+            // the message was stored when it was received, so it can't be in an older file
+            String nick = messageInfo.getSender() != null ? messageInfo.getSender().getNick() : null;
+            // walked without a tailSet view, as this runs for every message until seeded
+            for (Long dateId = availableFilesAsc.ceiling(DateIdentifierHelper.getDateIdentifier(date));
+                 dateId != null; dateId = availableFilesAsc.higher(dateId)) {
+                SQLiteMessageStorageFile file = openFileFor(dateId, true);
+                try {
+                    if (file.containsMessage(channel, date, messageInfo.getType().asInt(),
+                            messageInfo.getMessage(), nick)) {
+                        deduplicator.onSuppressed();
+                        return true;
+                    }
+                } finally {
+                    file.removeReference();
+                }
+            }
+            if (seeded)
+                deduplicator.onFalsePositive();
+        }
+        filter.add(fingerprint);
+        return false;
+    }
+
+    private void notifyMessageListeners(String channel, MessageInfo messageInfo, long dateId,
+                                        int msgId) {
+        synchronized (listeners) {
+            List<MessageListener> channelListeners = listeners.get(channel);
+            if (globalListeners.isEmpty() && (channelListeners == null ||
+                    channelListeners.isEmpty()))
+                return;
+            MessageId msgIdObj = new MyMessageId(dateId, msgId);
+            // indexed loops, as iterators would be allocated for every message otherwise
+            for (int i = 0; i < globalListeners.size(); i++)
+                globalListeners.get(i).onMessage(channel, messageInfo, msgIdObj);
+            if (channelListeners != null) {
+                for (int i = 0; i < channelListeners.size(); i++)
+                    channelListeners.get(i).onMessage(channel, messageInfo, msgIdObj);
+            }
+        }
     }
 
     private MessageList getMessagesImpl(String channel, int count, MessageFilterOptions options, MessageListAfterIdentifier after) {
+        return getMessagesImpl(channel, count, options, after, false, null);
+    }
+
+    /**
+     * @param includeAfter whether the message the identifier points to should be returned too
+     * @param sender only return the messages of this sender, or null for all messages
+     */
+    private MessageList getMessagesImpl(String channel, int count, MessageFilterOptions options, MessageListAfterIdentifier after, boolean includeAfter, UUID sender) {
         MyMessageListOlderIdentifier a = (MyMessageListOlderIdentifier) after;
         boolean isNewer = a instanceof MyMessageListNewerIdentifier;
         MyMessageListOlderIdentifier otherId = null;
@@ -146,12 +591,15 @@ public class SQLiteMessageStorageApi implements WritableMessageStorageApi {
             else
                 otherId = new MyMessageListNewerIdentifier(a.fileDateId, a.afterId, a.offset);
         }
-        long fileDateId = (a == null ? getDateIdentifier(new Date()) : a.fileDateId);
+        long fileDateId = (a == null ? currentDay.getDateIdentifier(System.currentTimeMillis()) : a.fileDateId);
         SQLiteMessageStorageFile file = openFileFor(fileDateId, true);
-        MessageQueryResult result = file.getMessages(channel, (a == null ? -1 : a.afterId), (a == null ? 0 : a.offset), count, isNewer, options);
+        MessageQueryResult result = file.getMessages(channel, (a == null ? -1 : a.afterId), includeAfter, (a == null ? 0 : a.offset), count, isNewer, options, sender);
         file.removeReference();
-        List<MessageInfo> ret = new ArrayList<>();
-        List<MessageId> retIds = new ArrayList<>();
+        // the messages of every file are kept in a separate chunk (in the order the files were
+        // read) and only concatenated once, as going back in time would mean prepending them
+        List<List<MessageInfo>> chunks = new ArrayList<>();
+        int found = 0;
+        List<MessageId> retIds = new MessageIdList();
         if (result != null) {
             int afterId = result.getAfterId();
             if (result.getMessages().size() == count) {
@@ -160,24 +608,25 @@ public class SQLiteMessageStorageApi implements WritableMessageStorageApi {
                 else
                     return new MessageList(result.getMessages(), result.getMessageIds(), otherId, afterId == -1 ? null : new MyMessageListOlderIdentifier(fileDateId, afterId, 0));
             }
-            ret.addAll(result.getMessages());
+            chunks.add(result.getMessages());
+            found += result.getMessages().size();
             retIds.addAll(result.getMessageIds());
         }
 
         for (long i : (isNewer ? availableFilesAsc.tailSet(fileDateId + 1) : availableFilesDesc.tailSet(fileDateId - 1))) {
             file = openFileFor(i, true);
-            result = file.getMessages(channel, -1, 0, count - ret.size(), isNewer, options);
+            result = file.getMessages(channel, -1, false, 0, count - found, isNewer, options, sender);
             file.removeReference();
             if (result != null) {
-                if (isNewer) {
-                    ret.addAll(result.getMessages());
+                chunks.add(result.getMessages());
+                found += result.getMessages().size();
+                if (isNewer)
                     retIds.addAll(result.getMessageIds());
-                } else {
-                    ret.addAll(0, result.getMessages());
-                    retIds.addAll(0, result.getMessageIds());
-                }
+                else
+                    retIds.addAll(0, result.getMessageIds()); // amortized O(1) per element
                 int afterId = result.getAfterId();
-                if (ret.size() == count) {
+                if (found == count) {
+                    List<MessageInfo> ret = concatChunks(chunks, found, !isNewer);
                     if (isNewer)
                         return new MessageList(ret, retIds, afterId == -1 ? null : new MyMessageListNewerIdentifier(i, afterId, 0), otherId);
                     else
@@ -186,25 +635,192 @@ public class SQLiteMessageStorageApi implements WritableMessageStorageApi {
             }
         }
 
+        List<MessageInfo> ret = concatChunks(chunks, found, !isNewer);
         if (isNewer)
             return new MessageList(ret, retIds, null, otherId);
         else
             return new MessageList(ret, retIds, otherId, null);
     }
 
+    private static List<MessageInfo> concatChunks(List<List<MessageInfo>> chunks, int size,
+                                                  boolean reverse) {
+        List<MessageInfo> ret = new ArrayList<>(size);
+        for (int i = 0; i < chunks.size(); i++)
+            ret.addAll(chunks.get(reverse ? chunks.size() - 1 - i : i));
+        return ret;
+    }
+
+    /**
+     * Loads a page of the channel's history. Reads run in parallel with the writes, so the
+     * result may not include a message whose addMessage request is still queued; wait for its
+     * callback first if that matters.
+     */
     @Override
     public Future<MessageList> getMessages(String channel, int count, MessageFilterOptions options, MessageListAfterIdentifier after, ResponseCallback<MessageList> callback, ResponseErrorCallback errorCallback) {
-        return executor.queue(() -> getMessagesImpl(channel, count, options, after), callback, errorCallback);
+        // the cache also holds the pages loaded by warmUp, even if prefetching is disabled
+        MessageList prefetched = prefetchCache.take(
+                new MessagePageCache.Key(channel, count, options, after));
+        if (prefetched != null) {
+            schedulePrefetch(channel, count, options, after, prefetched);
+            return SimpleRequestExecutor.run(() -> prefetched, callback, errorCallback);
+        }
+        long fileDateId = (after instanceof MyMessageListOlderIdentifier ?
+                ((MyMessageListOlderIdentifier) after).fileDateId :
+                currentDay.getDateIdentifier(System.currentTimeMillis()));
+        return scheduler.queueRead(fileDateId, () -> {
+            MessageList ret = getMessagesImpl(channel, count, options, after);
+            schedulePrefetch(channel, count, options, after, ret);
+            return ret;
+        }, callback, errorCallback);
+    }
+
+    /**
+     * Loads a page of the messages the user with the specified UUID sent in one channel. This
+     * works like getMessages (the identifiers of the returned list load the following pages)
+     * except that pages are not prefetched. The lookups use the sender indexes of the daily
+     * files; files created before the indexes existed are upgraded on the way if possible.
+     * As with getMessages, messages whose addMessage request is still queued may be missing.
+     */
+    public Future<MessageList> getChannelSenderMessages(String channel, UUID sender, int count,
+                                                        MessageFilterOptions options,
+                                                        MessageListAfterIdentifier after,
+                                                        ResponseCallback<MessageList> callback,
+                                                        ResponseErrorCallback errorCallback) {
+        long fileDateId = (after instanceof MyMessageListOlderIdentifier ?
+                ((MyMessageListOlderIdentifier) after).fileDateId :
+                currentDay.getDateIdentifier(System.currentTimeMillis()));
+        return scheduler.queueRead(fileDateId, () -> getMessagesImpl(channel, count, options,
+                after, false, sender), callback, errorCallback);
+    }
+
+    /**
+     * Enables loading the next page in the same direction in the background after a page is
+     * returned from getMessages, so that the following request can be answered immediately.
+     */
+    public void setPrefetchEnabled(boolean enabled) {
+        prefetchEnabled = enabled;
+        if (!enabled)
+            prefetchCache.clear();
+    }
+
+    /**
+     * Drops the pages prefetched for the channel and cancels the pending prefetches. Should be
+     * called when the user leaves the channel's view.
+     */
+    public void cancelPrefetch(String channel) {
+        prefetchCache.invalidate(channel);
+    }
+
+    /**
+     * Prepares the storage for the connection to a server in the background: opens today's file
+     * for writing, creates the tables and compiles the statements of the autojoin channels,
+     * starts seeding their deduplication filters, and loads the latest page of the recently
+     * viewed channels. Today's file is kept open for a few minutes, so that it isn't closed before the
+     * connection is established; warming up again extends that time. The pages are only used by getMessages calls with the same
+     * count and the same options instance, and are dropped when a message is added.
+     */
+    public Future<Void> warmUp(List<String> autojoinChannels, List<String> recentChannels,
+                               int pageSize, MessageFilterOptions pageOptions,
+                               ResponseCallback<Void> callback,
+                               ResponseErrorCallback errorCallback) {
+        for (String channel : recentChannels) {
+            MessagePageCache.Key key = new MessagePageCache.Key(channel, pageSize, pageOptions,
+                    null);
+            long generation = prefetchCache.getGeneration(channel);
+            prefetchExecutor.queue(() -> {
+                if (prefetchCache.contains(key) || prefetchCache.getGeneration(channel) != generation)
+                    return null;
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                prefetchCache.put(key, getMessagesImpl(channel, pageSize, pageOptions, null),
+                        generation);
+                return null;
+            }, null, null);
+        }
+        return scheduler.queueWrite(() -> {
+            long now = System.currentTimeMillis();
+            SQLiteMessageStorageFile file = openFileFor(currentDay.getDateIdentifier(now), false);
+            try {
+                for (String channel : autojoinChannels)
+                    file.prepareChannel(channel);
+            } finally {
+                holdWarmUpFile(file);
+            }
+            MessageDeduplicator deduplicator = this.deduplicator;
+            if (deduplicator != null) {
+                for (String channel : autojoinChannels) {
+                    if (deduplicator.getChannelFilter(channel, now) == null)
+                        createDeduplicationFilter(deduplicator, channel, now);
+                }
+            }
+            return null;
+        }, callback, errorCallback);
+    }
+
+    /**
+     * Keeps the reference to the file the caller got for a while, instead of releasing it right
+     * away. Only one file is held at a time: warming up the same file again only extends the
+     * hold, and warming up another one releases the previous file.
+     */
+    private void holdWarmUpFile(SQLiteMessageStorageFile file) {
+        SQLiteMessageStorageFile release;
+        synchronized (warmUpLock) {
+            handler.removeCallbacks(releaseWarmUpRunnable);
+            if (warmUpFile == file) {
+                release = file; // already held
+            } else {
+                release = warmUpFile;
+                warmUpFile = file;
+            }
+            handler.postDelayed(releaseWarmUpRunnable, WARM_UP_HOLD_TIME);
+        }
+        if (release != null)
+            release.removeReference();
+    }
+
+    private void releaseWarmUpFile() {
+        SQLiteMessageStorageFile file;
+        synchronized (warmUpLock) {
+            file = warmUpFile;
+            warmUpFile = null;
+        }
+        if (file != null)
+            file.removeReference();
     }
 
+    private void schedulePrefetch(String channel, int count, MessageFilterOptions options,
+                                  MessageListAfterIdentifier after, MessageList page) {
+        if (!prefetchEnabled)
+            return;
+        MessageListAfterIdentifier next = (after instanceof MyMessageListNewerIdentifier ?
+                page.getNewer() : page.getOlder());
+        if (next == null)
+            return;
+        MessagePageCache.Key key = new MessagePageCache.Key(channel, count, options, next);
+        if (prefetchCache.contains(key))
+            return;
+        long generation = prefetchCache.getGeneration(channel);
+        prefetchExecutor.queue(() -> {
+            if (prefetchCache.getGeneration(channel) != generation)
+                return null;
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            prefetchCache.put(key, getMessagesImpl(channel, count, options, next), generation);
+            return null;
+        }, null, null);
+    }
+
+    /**
+     * Loads the messages around the specified one. Like getMessages, this doesn't wait for the
+     * queued writes.
+     */
     @Override
     public Future<MessageList> getMessagesNear(String s, MessageId messageId, MessageFilterOptions filter, ResponseCallback<MessageList> callback, ResponseErrorCallback errorCallback) {
-        return executor.queue(() -> {
+        long fileDateId = (messageId instanceof MyMessageId ? ((MyMessageId) messageId).fileDateId : 0);
+        return scheduler.queueRead(fileDateId, () -> {
             if (!(messageId instanceof MyMessageId))
                 throw new RuntimeException("Invalid message id type");
             MyMessageId m = (MyMessageId) messageId;
             MessageList older = getMessagesImpl(s, 50, filter, new MyMessageListOlderIdentifier(m.fileDateId, m.id, 0));
-            MessageList newer = getMessagesImpl(s, 50, filter, new MyMessageListNewerIdentifier(m.fileDateId, m.id - 1 /* include the current message */, 0));
+            MessageList newer = getMessagesImpl(s, 50, filter, new MyMessageListNewerIdentifier(m.fileDateId, m.id, 0), true, null);
             List<MessageInfo> ret = older.getMessages(); // we can mutate it just fine, as we control the object
             List<MessageId> retIds = older.getMessageIds();
             ret.addAll(newer.getMessages());
@@ -213,9 +829,133 @@ public class SQLiteMessageStorageApi implements WritableMessageStorageApi {
         }, callback, errorCallback);
     }
 
+    private SenderMessageList getSenderMessagesImpl(UUID sender, int count,
+                                                    MySenderMessageListIdentifier after) {
+        List<MessageInfo> messages = new ArrayList<>();
+        List<String> channels = new ArrayList<>();
+        MessageIdList ids = new MessageIdList();
+        Iterable<Long> fileIds = (after != null ? availableFilesDesc.tailSet(after.fileDateId) :
+                availableFilesDesc);
+        for (long fileId : fileIds) {
+            SQLiteMessageStorageFile file = openFileFor(fileId, true);
+            try {
+                SQLiteMessageStorageFile.SenderMessagePosition position = null;
+                if (after != null && after.fileDateId == fileId)
+                    position = after.position;
+                file.getSenderMessages(sender, position, count - messages.size(), messages,
+                        channels, ids);
+            } finally {
+                file.removeReference();
+            }
+            if (messages.size() == count) {
+                int last = count - 1;
+                return new SenderMessageList(messages, channels, ids,
+                        new MySenderMessageListIdentifier(ids.getFileDateId(last),
+                                new SQLiteMessageStorageFile.SenderMessagePosition(
+                                        messages.get(last).getDate().getTime(),
+                                        channels.get(last), ids.getRowId(last))));
+            }
+        }
+        return new SenderMessageList(messages, channels, ids, null);
+    }
+
+    /**
+     * Pages through the messages sent by the user with the specified UUID in all channels,
+     * newest first. The lookups use the per-channel sender indexes of the daily files, older
+     * files are upgraded to get them when nothing else is using them at the moment. Messages
+     * whose addMessage request is still queued may be missing, as with getMessages.
+     * @param after the identifier returned by SenderMessageList.getOlder() or null for the
+     *              newest messages
+     */
+    public Future<SenderMessageList> getSenderMessages(UUID sender, int count,
+                                                       MessageListAfterIdentifier after,
+                                                       ResponseCallback<SenderMessageList> callback,
+                                                       ResponseErrorCallback errorCallback) {
+        long fileDateId = (after instanceof MySenderMessageListIdentifier ?
+                ((MySenderMessageListIdentifier) after).fileDateId :
+                currentDay.getDateIdentifier(System.currentTimeMillis()));
+        return scheduler.queueRead(fileDateId, () -> {
+            if (after != null && !(after instanceof MySenderMessageListIdentifier))
+                throw new RuntimeException("Invalid identifier type");
+            return getSenderMessagesImpl(sender, count, (MySenderMessageListIdentifier) after);
+        }, callback, errorCallback);
+    }
+
+    /**
+     * Opens a stream over the history of the specified channel. See MessageStream. The stream
+     * reads the files directly, so it doesn't wait for the queued addMessage requests.
+     * @param after the message to start after (exclusive), or null to start at the oldest
+     *              message (if newer is true) or the newest one
+     * @param newer whether to go towards newer messages
+     */
+    public MessageStream openMessageStream(String channel, MessageId after, boolean newer,
+                                           MessageFilterOptions filterOptions) {
+        return openMessageStream(channel, after, newer, filterOptions,
+                MessageCursor.DEFAULT_CHUNK_SIZE);
+    }
+
+    public MessageStream openMessageStream(String channel, MessageId after, boolean newer,
+                                           MessageFilterOptions filterOptions, int chunkSize) {
+        if (after != null && !(after instanceof MyMessageId))
+            throw new IllegalArgumentException("Invalid message id type");
+        MyMessageId a = (MyMessageId) after;
+        if (a == null)
+            return new MessageStream(this, channel, newer ? Long.MIN_VALUE : Long.MAX_VALUE, -1,
+                    newer, filterOptions, chunkSize);
+        return new MessageStream(this, channel, a.fileDateId, a.id, newer, filterOptions,
+                chunkSize);
+    }
+
+    /**
+     * Brings the summary of the aggregate tables up to date: files which have changed since
+     * they were last rolled up (or never were) are copied into it, and files which don't exist
+     * anymore are dropped from it.
+     */
+    private void rollUpStats() {
+        Set<Long> rolledUp = new HashSet<>(statsStore.getRolledUpFiles());
+        for (long dateId : statsStore.getFiles()) {
+            if (!availableFilesAsc.contains(dateId))
+                statsStore.removeFile(dateId);
+        }
+        for (long dateId : availableFilesAsc) {
+            if (rolledUp.contains(dateId))
+                continue;
+            SQLiteMessageStorageFile file = openFileFor(dateId, true);
+            try {
+                file.rollUpStats(statsStore);
+            } finally {
+                file.removeReference();
+            }
+        }
+    }
+
+    /**
+     * Computes the activity statistics of the specified channel for the messages sent between
+     * the two dates (inclusive, with day granularity). The statistics are read from a single
+     * summary of the aggregate tables of the daily files; only the files changed since the last
+     * call have to be opened. The counts don't include the messages that are still waiting in
+     * the write queue.
+     * @param topSenderCount the maximal number of senders returned by getTopSenders()
+     */
+    public Future<ChannelStats> getChannelStats(String channel, Date from, Date to,
+                                                int topSenderCount,
+                                                ResponseCallback<ChannelStats> callback,
+                                                ResponseErrorCallback errorCallback) {
+        long fromDateId = DateIdentifierHelper.getDateIdentifier(from.getTime());
+        long toDateId = DateIdentifierHelper.getDateIdentifier(to.getTime());
+        return scheduler.queueRead(toDateId, () -> {
+            rollUpStats();
+            ChannelStats.Collector collector = new ChannelStats.Collector();
+            if (fromDateId <= toDateId)
+                statsStore.collect(channel, fromDateId, toDateId, collector);
+            return collector.build(topSenderCount);
+        }, callback, errorCallback);
+    }
+
     @Override
     public Future<Void> deleteMessages(String channel, List<MessageId> list, ResponseCallback<Void> callback, ResponseErrorCallback errorCallback) {
-        return executor.queue(() -> {
+        return scheduler.queueWrite(() -> {
+            prefetchCache.invalidate(channel);
             long previousFileId = -1;
             long previousFirstRowId = -1;
             long previousLastRowId = -1;
@@ -242,10 +982,151 @@ public class SQLiteMessageStorageApi implements WritableMessageStorageApi {
                 file.removeMessageRange(channel, previousFirstRowId, previousLastRowId);
                 file.removeReference();
             }
+            // again, as a prefetch may have loaded a page while the messages were being removed
+            prefetchCache.invalidate(channel);
             return null;
         }, callback, errorCallback);
     }
 
+    private long exportMessagesImpl(List<String> channels, MessageExporter exporter,
+                                    MessageExportListener listener) throws IOException {
+        List<Long> fileIds;
+        synchronized (files) {
+            fileIds = new ArrayList<>(availableFilesAsc);
+        }
+        int totalFiles = fileIds.size() * channels.size();
+        int processedFiles = 0;
+        long exportedMessages = 0;
+        for (long fileId : fileIds) {
+            SQLiteMessageStorageFile file = openFileFor(fileId, true);
+            try {
+                for (String channel : channels) {
+                    try (MessageCursor cursor = file.openMessageCursor(channel, -1, true, null)) {
+                        boolean first = true;
+                        while (cursor.moveToNext()) {
+                            if (first) {
+                                exporter.writeSectionHeader(channel, fileId);
+                                first = false;
+                            }
+                            exporter.writeMessage(channel, cursor.getMessage());
+                            exportedMessages++;
+                        }
+                    }
+                    processedFiles++;
+                    if (Thread.interrupted() || (listener != null &&
+                            !listener.onProgress(processedFiles, totalFiles, exportedMessages))) {
+                        exporter.flush();
+                        return exportedMessages;
+                    }
+                }
+            } finally {
+                file.removeReference();
+            }
+        }
+        exporter.flush();
+        return exportedMessages;
+    }
+
+    /**
+     * Exports the whole history of the specified channels, oldest messages first. The messages
+     * are streamed from the daily files, so the memory usage doesn't depend on the history size.
+     * The writer is flushed, but not closed.
+     * @param listener optional progress listener, which can also cancel the export
+     * @return a future resolving to the number of exported messages
+     */
+    public Future<Long> exportMessages(List<String> channels, MessageExportFormat format,
+                                       Writer writer, MessageExportListener listener,
+                                       ResponseCallback<Long> callback,
+                                       ResponseErrorCallback errorCallback) {
+        MessageExporter exporter = new MessageExporter(format, writer instanceof BufferedWriter ?
+                writer : new BufferedWriter(writer));
+        return bulkExecutor.queue(() -> exportMessagesImpl(channels, exporter, listener),
+                callback, errorCallback);
+    }
+
+    public Future<Long> exportMessages(List<String> channels, MessageExportFormat format,
+                                       OutputStream stream, MessageExportListener listener,
+                                       ResponseCallback<Long> callback,
+                                       ResponseErrorCallback errorCallback) {
+        Writer writer;
+        try {
+            writer = new OutputStreamWriter(stream, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+        return exportMessages(channels, format, writer, listener, callback, errorCallback);
+    }
+
+    /**
+     * Adds messages to an existing position in the history of the channel, so all the cached
+     * pages of the channel are dropped, as with deleteMessages.
+     */
+    void addMessagesToFile(long dateId, String channel, List<MessageInfo> messages) {
+        SQLiteMessageStorageFile file = openFileFor(dateId, false);
+        try {
+            file.addMessages(channel, messages);
+        } finally {
+            file.removeReference();
+            prefetchCache.invalidate(channel);
+        }
+    }
+
+    /**
+     * Imports a plain text log of the specified channel. Every message is stored in the daily
+     * file matching its timestamp; message listeners are not notified. If a file already has
+     * newer messages of the channel, the channel is read ordered by date in that file.
+     * @param logDate the date of the log file, required for formats which only store the time
+     *                of the messages (ZNC) and optional otherwise
+     * @param skipLines the last committedLines value reported to the listener by an interrupted
+     *                  import of the same log, or 0 to import the whole log
+     * @param listener optional progress listener, which can also cancel the import
+     * @return a future resolving to the number of imported messages
+     */
+    public Future<Long> importMessages(String channel, MessageLogFormat format, Reader reader,
+                                       Date logDate, long skipLines,
+                                       MessageImportListener listener,
+                                       ResponseCallback<Long> callback,
+                                       ResponseErrorCallback errorCallback) {
+        MessageLogImporter importer = new MessageLogImporter(this, channel,
+                MessageLogParser.create(format, logDate), listener);
+        BufferedReader bufferedReader = reader instanceof BufferedReader ?
+                (BufferedReader) reader : new BufferedReader(reader);
+        return bulkExecutor.queue(() -> importer.importLog(bufferedReader, skipLines),
+                callback, errorCallback);
+    }
+
+    /**
+     * Compresses the messages of the daily files that are at least the specified number of days
+     * old. The days within the deduplication window are never compacted, as duplicates are only
+     * detected among uncompressed messages, so the age is raised to at least one day more than
+     * the window. Files which have already been compacted are skipped after a quick check.
+     * @return a future resolving to the number of files that have been checked
+     */
+    public Future<Integer> compactOldFiles(int minAgeDays, ResponseCallback<Integer> callback,
+                                           ResponseErrorCallback errorCallback) {
+        return bulkExecutor.queue(() -> {
+            MessageDeduplicator deduplicator = this.deduplicator;
+            long dayMillis = DateIdentifierHelper.MILLIS_PER_DAY;
+            long windowDays = deduplicator != null ?
+                    (deduplicator.getWindowMillis() + dayMillis - 1) / dayMillis : 0;
+            long maxDateId = DateIdentifierHelper.getDateIdentifier(System.currentTimeMillis() -
+                    Math.max(minAgeDays, windowDays + 1) * dayMillis);
+            int ret = 0;
+            for (long dateId : availableFilesAsc.headSet(maxDateId + 1)) {
+                if (Thread.interrupted())
+                    break;
+                SQLiteMessageStorageFile file = openFileFor(dateId, true);
+                try {
+                    file.compact();
+                } finally {
+                    file.removeReference();
+                }
+                ret++;
+            }
+            return ret;
+        }, callback, errorCallback);
+    }
+
     @Override
     public Future<Void> subscribeChannelMessages(String channel, MessageListener messageListener, ResponseCallback<Void> callback, ResponseErrorCallback errorCallback) {
         synchronized (listeners) {
@@ -265,12 +1146,42 @@ public class SQLiteMessageStorageApi implements WritableMessageStorageApi {
             if (channel != null) {
                 if (listeners.containsKey(channel))
                     listeners.get(channel).remove(messageListener);
+                cancelPrefetch(channel);
             } else
                 globalListeners.remove(messageListener);
         }
         return SimpleRequestExecutor.run(() -> null, callback, errorCallback);
     }
 
+    /**
+     * @return the number of queued or running write requests (adds, deletes and warm-ups)
+     */
+    public int getWriteQueueDepth() {
+        return scheduler.getWriteQueueDepth();
+    }
+
+    /**
+     * @return the number of queued or running history read requests in all the read lanes
+     */
+    public int getReadQueueDepth() {
+        return scheduler.getReadQueueDepth();
+    }
+
+    /**
+     * @return the number of read lanes; the reads starting at the same day always share a lane
+     */
+    public int getReadLaneCount() {
+        return scheduler.getReadLaneCount();
+    }
+
+    /**
+     * @param lane the lane index, between 0 and getReadLaneCount() - 1
+     * @return the number of queued or running read requests in the specified read lane
+     */
+    public int getReadQueueDepth(int lane) {
+        return scheduler.getReadQueueDepth(lane);
+    }
+
     @Override
     public MessageId.Parser getMessageIdParser() {
         return getMessageIdParserInstance();
@@ -297,6 +1208,11 @@ public class SQLiteMessageStorageApi implements WritableMessageStorageApi {
                 return fileDateId == ((MyMessageId) obj).fileDateId && id == ((MyMessageId) obj).id;
             return false;
         }
+
+        @Override
+        public int hashCode() {
+            return (int) (fileDateId ^ (fileDateId >>> 32)) * 31 + id;
+        }
     }
 
     static class MyMessageIdParser implements MessageId.Parser {
@@ -323,6 +1239,22 @@ public class SQLiteMessageStorageApi implements WritableMessageStorageApi {
             this.offset = offset;
         }
 
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == null || obj.getClass() != getClass())
+                return false;
+            MyMessageListOlderIdentifier o = (MyMessageListOlderIdentifier) obj;
+            return fileDateId == o.fileDateId && afterId == o.afterId && offset == o.offset;
+        }
+
+        @Override
+        public int hashCode() {
+            int ret = (int) (fileDateId ^ (fileDateId >>> 32));
+            ret = ret * 31 + afterId;
+            ret = ret * 31 + offset;
+            return ret;
+        }
+
     }
 
 
@@ -332,6 +1264,19 @@ public class SQLiteMessageStorageApi implements WritableMessageStorageApi {
         }
     }
 
+    static class MySenderMessageListIdentifier implements MessageListAfterIdentifier {
+
+        final long fileDateId;
+        final SQLiteMessageStorageFile.SenderMessagePosition position;
+
+        MySenderMessageListIdentifier(long fileDateId,
+                                      SQLiteMessageStorageFile.SenderMessagePosition position) {
+            this.fileDateId = fileDateId;
+            this.position = position;
+        }
+
+    }
+
     public static MyMessageIdParser getMessageIdParserInstance() {
         return MESSAGE_ID_PARSER;
     }
@@ -5,23 +5,37 @@ import android.database.sqlite.SQLiteCantOpenDatabaseException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 
 import io.mrarm.chatlib.android.storage.contract.MessagesContract;
+import io.mrarm.chatlib.dto.BatchInfo;
 import io.mrarm.chatlib.dto.MessageFilterOptions;
-import io.mrarm.chatlib.dto.MessageId;
 import io.mrarm.chatlib.dto.MessageInfo;
+import io.mrarm.chatlib.dto.MessageSenderInfo;
 
 public class SQLiteMessageStorageFile {
 
+    private static final String TAG = "SQLiteMessageStorage";
     private static final int AUTO_REMOVE_DELAY = 60 * 1000; // a minute
-    private static final int CURRENT_DATABASE_VERSION = 1;
+    private static final MessageFileMigrator MIGRATOR = new MessageFileMigrator();
+    private static final int BATCH_CACHE_SIZE = 32;
+    static final int COMPRESSED_BLOCK_SIZE = 128;
+    private static final int COMPRESSED_BLOCK_CACHE_SIZE = 4;
+    private static final int DICTIONARY_SAMPLE_SIZE = 2000;
+    private static final int MAX_COMPOUND_SELECT_CHANNELS = 200;
 
     private final SQLiteMessageStorageApi owner;
     private final long key;
@@ -31,9 +45,34 @@ public class SQLiteMessageStorageFile {
 
     private final File file;
     private boolean readOnly;
+    private boolean writable;
     private SQLiteDatabase database;
     private boolean triedOpen = false;
     private final Map<String, SQLiteStatement> createMessageStatements = new HashMap<>();
+    private List<String> channels;
+    private Set<String> dateOrderedChannels;
+    private final SenderInfoCache senderInfoCache = new SenderInfoCache();
+    private SQLiteStatement createBatchStatement;
+    private SQLiteStatement updateBatchStatement;
+    private SQLiteStatement updateHourlyStatsStatement;
+    private SQLiteStatement updateSenderStatsStatement;
+    private boolean statsDirty;
+    private final DateIdentifierHelper.CurrentDayCache dayCache =
+            new DateIdentifierHelper.CurrentDayCache();
+    private final Map<UUID, BatchInfo> batchCache = new LinkedHashMap<UUID, BatchInfo>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<UUID, BatchInfo> eldest) {
+            return size() > BATCH_CACHE_SIZE;
+        }
+    };
+    private final MessageStorageHelper.BatchResolver batchResolver = this::getBatch;
+    private final Map<String, MessageTextCodec> textCodecs = new HashMap<>();
+    private final Map<Long, MessageTextCodec.Block> compressedBlockCache = new LinkedHashMap<Long, MessageTextCodec.Block>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, MessageTextCodec.Block> eldest) {
+            return size() > COMPRESSED_BLOCK_CACHE_SIZE;
+        }
+    };
 
     private Runnable removeRunnable = () -> close(true);
 
@@ -59,7 +98,9 @@ public class SQLiteMessageStorageFile {
     public void removeReference() {
         synchronized (this) {
             references--;
-            if (references == 0)
+            if (references == 1)
+                notifyAll(); // requireWrite may be waiting for the other references
+            else if (references == 0)
                 owner.getHandler().postDelayed(removeRunnable, AUTO_REMOVE_DELAY);
         }
     }
@@ -67,8 +108,12 @@ public class SQLiteMessageStorageFile {
     void close(boolean deleteFromOwner) {
         synchronized (this) {
             removed = true;
-            if (database != null)
+            closeTextCodecs();
+            if (database != null) {
                 database.close();
+                database = null;
+                owner.updateFileSize(key, file.length());
+            }
             if (deleteFromOwner) {
                 synchronized (owner.files) {
                     if (owner.files.get(key) == SQLiteMessageStorageFile.this)
@@ -78,6 +123,33 @@ public class SQLiteMessageStorageFile {
         }
     }
 
+    /**
+     * Closes the file if nobody holds a reference to it. Must be called with the owner's file
+     * list locked, so that no new references can be acquired in the meantime.
+     * @return whether the file has been closed
+     */
+    boolean closeIfUnused() {
+        synchronized (this) {
+            if (references > 0)
+                return false;
+            owner.getHandler().removeCallbacks(removeRunnable);
+            removed = true;
+            closeTextCodecs();
+            if (database != null) {
+                database.close();
+                database = null;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Makes sure the file exists and has the current schema. Files opened for reading are
+     * normally already opened for writing as well and only have to be migrated; the database is
+     * only reopened if the file could only be opened read only, which waits until the other
+     * references (such as message cursors) have been released, as they are still using it. The
+     * caller must hold exactly one reference.
+     */
     public void requireWrite() {
         synchronized (this) {
             triedOpen = true;
@@ -85,9 +157,23 @@ public class SQLiteMessageStorageFile {
                 readOnly = false;
                 openDatabase();
             } else if (readOnly) {
-                database.close();
+                if (!writable) {
+                    while (references > 1) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new SQLiteException("Interrupted while waiting for the file");
+                        }
+                    }
+                    database.close();
+                    database = null;
+                }
                 readOnly = false;
-                openDatabase();
+                if (database == null)
+                    openDatabase();
+                else
+                    migrate();
             }
         }
     }
@@ -111,19 +197,50 @@ public class SQLiteMessageStorageFile {
     private void openDatabase() {
         synchronized (this) {
             if (readOnly) {
-                database = SQLiteDatabase.openDatabase(file.toString(), null, SQLiteDatabase.OPEN_READONLY);
+                // older versions are read as they are, see MessageFileMigrator; the file is
+                // still opened for writing if possible, so that requireWrite doesn't have to
+                // reopen it under the cursors that are reading it
+                try {
+                    database = SQLiteDatabase.openDatabase(file.toString(), null,
+                            SQLiteDatabase.OPEN_READWRITE);
+                    writable = true;
+                } catch (SQLiteCantOpenDatabaseException e) {
+                    throw e;
+                } catch (SQLiteException e) {
+                    database = SQLiteDatabase.openDatabase(file.toString(), null,
+                            SQLiteDatabase.OPEN_READONLY);
+                    writable = false;
+                }
+                owner.updateFileSchemaVersion(key, database.getVersion());
             } else {
                 database = SQLiteDatabase.openOrCreateDatabase(file, null);
-                if (database.getVersion() == 0) {
-                    createDatabaseTables();
-                    database.setVersion(CURRENT_DATABASE_VERSION);
-                }
+                writable = true;
+                migrate();
             }
         }
     }
 
-    private void createDatabaseTables() {
-        //
+    private void migrate() {
+        if (MIGRATOR.needsUpgrade(database)) {
+            markStatsDirty(); // the upgrade may rebuild the aggregates
+            MIGRATOR.migrate(database);
+        }
+        owner.updateFileSchemaVersion(key, database.getVersion());
+    }
+
+    /**
+     * Brings the file to the current schema version, unless it already is up to date. Files
+     * that anybody else holds a reference to are skipped, as the upgrade would block them for
+     * its whole duration; they are upgraded by a later call.
+     * @return false if the file still has to be upgraded
+     */
+    synchronized boolean upgrade() {
+        if (!requestRead() || !MIGRATOR.needsUpgrade(database))
+            return true;
+        if (references > 1)
+            return false;
+        requireWrite();
+        return true;
     }
 
     private boolean appendWhereOrAnd(StringBuilder query, boolean hasAppendedWhere) {
@@ -162,37 +279,367 @@ public class SQLiteMessageStorageFile {
         }
     }
 
+    private static final String MESSAGE_COLUMNS =
+            MessagesContract.MessageEntry._ID + "," +
+            MessagesContract.MessageEntry.COLUMN_NAME_SENDER_DATA + "," +
+            MessagesContract.MessageEntry.COLUMN_NAME_SENDER_UUID + "," +
+            MessagesContract.MessageEntry.COLUMN_NAME_DATE + "," +
+            MessagesContract.MessageEntry.COLUMN_NAME_TEXT + "," +
+            MessagesContract.MessageEntry.COLUMN_NAME_TYPE + "," +
+            MessagesContract.MessageEntry.COLUMN_NAME_EXTRA_DATA;
+
+    /**
+     * Builds the query for the messages after (or before, if newer is false) the specified row.
+     * The rows are ordered by id, except in channels which had older messages imported after
+     * newer ones, which are ordered by date and then by id; the position of the row is then
+     * looked up by its id, so the same identifiers work for both.
+     * @param sender only return the messages of this sender, or null for all messages
+     */
+    private String buildMessageQuery(String channel, int id, boolean inclusive, boolean newer,
+                                     MessageFilterOptions filterOptions, UUID sender) {
+        String tableName = MessagesContract.MessageEntry.getEscapedTableName(channel);
+        boolean byDate = isDateOrdered(channel);
+        StringBuilder query = new StringBuilder();
+        query.append("SELECT " + MESSAGE_COLUMNS + " FROM ");
+        query.append(tableName);
+        query.append(" WHERE " + MessagesContract.MessageEntry.COLUMN_NAME_TYPE + "!=" +
+                MessageStorageHelper.TYPE_DELETED);
+        if (sender != null) {
+            query.append(" AND " + MessagesContract.MessageEntry.COLUMN_NAME_SENDER_UUID + "=");
+            query.append(MessageStorageHelper.uuidToHexLiteral(sender));
+        }
+        if (id != -1) {
+            String cmp = (newer ? ">" : "<");
+            if (byDate) {
+                // a row that no longer exists is treated as older than all the others
+                String date = MessagesContract.MessageEntry.COLUMN_NAME_DATE;
+                String anchor = "COALESCE((SELECT " + date + " FROM " + tableName + " WHERE " +
+                        MessagesContract.MessageEntry._ID + "=" + id + "),-1)";
+                query.append(" AND " + date + cmp + "=" + anchor + " AND (" + date + cmp +
+                        anchor + " OR " + MessagesContract.MessageEntry._ID + cmp +
+                        (inclusive ? "=" : "") + id + ")");
+            } else {
+                query.append(" AND " + MessagesContract.MessageEntry._ID + cmp +
+                        (inclusive ? "=" : ""));
+                query.append(id);
+            }
+        }
+        if (filterOptions != null) {
+            appendFilterQuery(query, filterOptions, true);
+        }
+        String order = (newer ? " ASC" : " DESC");
+        query.append(" ORDER BY ");
+        if (byDate)
+            query.append(MessagesContract.MessageEntry.COLUMN_NAME_DATE + order + ",");
+        query.append(MessagesContract.MessageEntry._ID + order);
+        return query.toString();
+    }
+
+    private synchronized boolean isDateOrdered(String channel) {
+        if (dateOrderedChannels == null) {
+            dateOrderedChannels = new HashSet<>();
+            try {
+                Cursor cursor = database.rawQuery("SELECT " +
+                        MessagesContract.DateOrderedChannelEntry.COLUMN_NAME_CHANNEL + " FROM " +
+                        MessagesContract.DateOrderedChannelEntry.TABLE_NAME, null);
+                while (cursor.moveToNext())
+                    dateOrderedChannels.add(cursor.getString(0));
+                cursor.close();
+            } catch (SQLiteException ignored) {
+                // files created before imports were ordered by date
+            }
+        }
+        return dateOrderedChannels.contains(channel);
+    }
+
+    /**
+     * Checks whether storing the messages would put them after messages with a later date.
+     */
+    private boolean isOutOfOrder(String channel, List<MessageInfo> messages) {
+        long maxDate = Long.MIN_VALUE;
+        Cursor cursor = database.rawQuery("SELECT MAX(" +
+                MessagesContract.MessageEntry.COLUMN_NAME_DATE + ") FROM " +
+                MessagesContract.MessageEntry.getEscapedTableName(channel), null);
+        if (cursor.moveToFirst() && !cursor.isNull(0))
+            maxDate = cursor.getLong(0);
+        cursor.close();
+        for (MessageInfo message : messages) {
+            long date = message.getDate().getTime();
+            if (date < maxDate)
+                return true;
+            maxDate = date;
+        }
+        return false;
+    }
+
+    MessageInfo readMessage(Cursor cursor, String channel) {
+        String senderData;
+        String text;
+        if (cursor.getType(4) == Cursor.FIELD_TYPE_BLOB) {
+            // compacted row, the text column references the compressed block
+            MessageTextCodec.Block block = getCompressedBlock(channel,
+                    MessageStorageHelper.bytesToLong(cursor.getBlob(4)));
+            int index = (block != null ? block.indexOf(cursor.getInt(0)) : -1);
+            senderData = (index != -1 ? block.getSenderData(index) : null);
+            text = (index != -1 ? block.getText(index) : null);
+        } else {
+            senderData = cursor.getString(1);
+            text = cursor.getString(4);
+        }
+        byte[] uuidBlob = cursor.getBlob(2);
+        return MessageStorageHelper.deserializeMessage(
+                uuidBlob != null ? MessageStorageHelper.deserializeSenderInfo(senderData, MessageStorageHelper.bytesToUUID(uuidBlob)) : null,
+                new Date(cursor.getLong(3)),
+                text,
+                cursor.getInt(5),
+                cursor.getString(6),
+                batchResolver
+        );
+    }
+
+    private synchronized void closeTextCodecs() {
+        for (MessageTextCodec codec : textCodecs.values()) {
+            if (codec != null)
+                codec.close();
+        }
+        textCodecs.clear();
+    }
+
+    private synchronized MessageTextCodec getTextCodec(String channel) {
+        if (textCodecs.containsKey(channel))
+            return textCodecs.get(channel); // null values are cached as well
+        MessageTextCodec ret = null;
+        try {
+            Cursor cursor = database.rawQuery("SELECT " +
+                    MessagesContract.CompressionDictionaryEntry.COLUMN_NAME_DICTIONARY +
+                    " FROM " + MessagesContract.CompressionDictionaryEntry.TABLE_NAME +
+                    " WHERE " + MessagesContract.CompressionDictionaryEntry.COLUMN_NAME_CHANNEL +
+                    "=?", new String[]{channel});
+            if (cursor.moveToFirst())
+                ret = new MessageTextCodec(cursor.getBlob(0));
+            cursor.close();
+        } catch (SQLiteException ignored) {
+            // files created before compaction was added
+        }
+        textCodecs.put(channel, ret);
+        return ret;
+    }
+
+    private synchronized MessageTextCodec.Block getCompressedBlock(String channel, long blockId) {
+        MessageTextCodec.Block ret = compressedBlockCache.get(blockId);
+        if (ret != null)
+            return ret;
+        MessageTextCodec codec = getTextCodec(channel);
+        if (codec == null)
+            return null;
+        Cursor cursor = database.rawQuery("SELECT " +
+                MessagesContract.CompressedBlockEntry.COLUMN_NAME_DATA +
+                " FROM " + MessagesContract.CompressedBlockEntry.TABLE_NAME +
+                " WHERE " + MessagesContract.CompressedBlockEntry._ID + "=" + blockId, null);
+        try {
+            if (cursor.moveToFirst())
+                ret = codec.decodeBlock(cursor.getBlob(0));
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to decode block " + blockId + " of " + channel + " in " +
+                    file.getName(), e);
+        } finally {
+            cursor.close();
+        }
+        if (ret != null)
+            compressedBlockCache.put(blockId, ret);
+        return ret;
+    }
+
+    synchronized List<String> getChannels() {
+        if (!requestRead())
+            return new ArrayList<>();
+        if (channels == null)
+            channels = MessageFileMigrator.getChannels(database);
+        return new ArrayList<>(channels);
+    }
+
+    /**
+     * Compresses the texts and sender strings of all the channels in this file into blocks,
+     * using a dictionary trained on the messages of each channel. Messages added afterwards are
+     * stored uncompressed. Reads decompress the blocks transparently. The file is vacuumed
+     * afterwards, without holding its lock.
+     */
+    public void compact() {
+        if (compactChannels())
+            vacuum();
+    }
+
+    private synchronized boolean compactChannels() {
+        requireWrite();
+        boolean changed = false;
+        for (String channel : getChannels()) {
+            if (getTextCodec(channel) == null) {
+                compactChannel(channel);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private void compactChannel(String channel) {
+        String tableName = MessagesContract.MessageEntry.getEscapedTableName(channel);
+        List<String> samples = new ArrayList<>();
+        Cursor cursor = database.rawQuery("SELECT " +
+                MessagesContract.MessageEntry.COLUMN_NAME_SENDER_DATA + "," +
+                MessagesContract.MessageEntry.COLUMN_NAME_TEXT +
+                " FROM " + tableName + " WHERE typeof(" +
+                MessagesContract.MessageEntry.COLUMN_NAME_TEXT + ")!='blob'" +
+                " ORDER BY RANDOM() LIMIT " + DICTIONARY_SAMPLE_SIZE, null);
+        while (cursor.moveToNext()) {
+            samples.add(cursor.getString(0));
+            samples.add(cursor.getString(1));
+        }
+        cursor.close();
+        byte[] dictionary = MessageTextCodec.trainDictionary(samples,
+                MessageTextCodec.MAX_DICTIONARY_SIZE);
+        MessageTextCodec codec = new MessageTextCodec(dictionary);
+
+        SQLiteStatement insertBlock = database.compileStatement("INSERT INTO " +
+                MessagesContract.CompressedBlockEntry.TABLE_NAME + " (" +
+                MessagesContract.CompressedBlockEntry.COLUMN_NAME_CHANNEL + "," +
+                MessagesContract.CompressedBlockEntry.COLUMN_NAME_DATA + ") VALUES (?1,?2)");
+        SQLiteStatement updateRows = database.compileStatement("UPDATE " + tableName +
+                " SET " + MessagesContract.MessageEntry.COLUMN_NAME_SENDER_DATA + "=NULL," +
+                MessagesContract.MessageEntry.COLUMN_NAME_TEXT + "=?1" +
+                " WHERE " + MessagesContract.MessageEntry._ID + ">=?2 AND " +
+                MessagesContract.MessageEntry._ID + "<=?3");
+        int[] ids = new int[COMPRESSED_BLOCK_SIZE];
+        String[] senders = new String[COMPRESSED_BLOCK_SIZE];
+        String[] texts = new String[COMPRESSED_BLOCK_SIZE];
+        database.beginTransaction();
+        try {
+            database.execSQL("INSERT INTO " +
+                    MessagesContract.CompressionDictionaryEntry.TABLE_NAME + " (" +
+                    MessagesContract.CompressionDictionaryEntry.COLUMN_NAME_CHANNEL + "," +
+                    MessagesContract.CompressionDictionaryEntry.COLUMN_NAME_DICTIONARY +
+                    ") VALUES (?,?)", new Object[]{channel, dictionary});
+            int lastId = -1;
+            int count;
+            do {
+                cursor = database.rawQuery("SELECT " +
+                        MessagesContract.MessageEntry._ID + "," +
+                        MessagesContract.MessageEntry.COLUMN_NAME_SENDER_DATA + "," +
+                        MessagesContract.MessageEntry.COLUMN_NAME_TEXT +
+                        " FROM " + tableName +
+                        " WHERE " + MessagesContract.MessageEntry._ID + ">" + lastId +
+                        " ORDER BY " + MessagesContract.MessageEntry._ID +
+                        " LIMIT " + COMPRESSED_BLOCK_SIZE, null);
+                count = 0;
+                while (cursor.moveToNext()) {
+                    ids[count] = cursor.getInt(0);
+                    senders[count] = cursor.getString(1);
+                    texts[count] = cursor.getString(2);
+                    count++;
+                }
+                cursor.close();
+                if (count == 0)
+                    break;
+                insertBlock.bindString(1, channel);
+                insertBlock.bindBlob(2, codec.encodeBlock(ids, senders, texts, count));
+                long blockId = insertBlock.executeInsert();
+                insertBlock.clearBindings();
+                updateRows.bindBlob(1, MessageStorageHelper.longToBytes(blockId));
+                updateRows.bindLong(2, ids[0]);
+                updateRows.bindLong(3, ids[count - 1]);
+                updateRows.executeUpdateDelete();
+                updateRows.clearBindings();
+                lastId = ids[count - 1];
+            } while (count == COMPRESSED_BLOCK_SIZE);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            insertBlock.close();
+            updateRows.close();
+            codec.close(); // the deflater is not needed anymore, reads create an inflater
+        }
+        textCodecs.put(channel, codec);
+    }
+
+    private synchronized BatchInfo getBatch(UUID uuid) {
+        if (batchCache.containsKey(uuid))
+            return batchCache.get(uuid); // null values are cached as well
+        BatchInfo ret = null;
+        try {
+            Cursor cursor = database.rawQuery("SELECT " +
+                    MessagesContract.BatchEntry.COLUMN_NAME_TYPE + "," +
+                    MessagesContract.BatchEntry.COLUMN_NAME_PARAMETERS +
+                    " FROM " + MessagesContract.BatchEntry.TABLE_NAME +
+                    " WHERE " + MessagesContract.BatchEntry.COLUMN_NAME_UUID + "=" +
+                    MessageStorageHelper.uuidToHexLiteral(uuid) + " LIMIT 1", null);
+            if (cursor.moveToFirst())
+                ret = new BatchInfo(uuid, cursor.getString(0),
+                        MessageStorageHelper.deserializeBatchParameters(cursor.getString(1)));
+            cursor.close();
+        } catch (SQLiteException ignored) {
+            // files created before the batch table was added
+        }
+        batchCache.put(uuid, ret);
+        return ret;
+    }
+
+    private void addBatchMember(String channel, BatchInfo batch, long messageId) {
+        if (createBatchStatement == null) {
+            createBatchStatement = database.compileStatement(
+                    "INSERT OR IGNORE INTO " + MessagesContract.BatchEntry.TABLE_NAME + " (" +
+                            MessagesContract.BatchEntry.COLUMN_NAME_UUID + "," +
+                            MessagesContract.BatchEntry.COLUMN_NAME_CHANNEL + "," +
+                            MessagesContract.BatchEntry.COLUMN_NAME_TYPE + "," +
+                            MessagesContract.BatchEntry.COLUMN_NAME_PARAMETERS + "," +
+                            MessagesContract.BatchEntry.COLUMN_NAME_FIRST_MESSAGE_ID + "," +
+                            MessagesContract.BatchEntry.COLUMN_NAME_LAST_MESSAGE_ID +
+                            ") VALUES (?1,?2,?3,?4,?5,?5)");
+            updateBatchStatement = database.compileStatement(
+                    "UPDATE " + MessagesContract.BatchEntry.TABLE_NAME + " SET " +
+                            MessagesContract.BatchEntry.COLUMN_NAME_LAST_MESSAGE_ID + "=?3" +
+                            " WHERE " + MessagesContract.BatchEntry.COLUMN_NAME_UUID + "=?1" +
+                            " AND " + MessagesContract.BatchEntry.COLUMN_NAME_CHANNEL + "=?2");
+        }
+        byte[] uuid = MessageStorageHelper.uuidToBytes(batch.getUUID());
+        createBatchStatement.bindBlob(1, uuid);
+        createBatchStatement.bindString(2, channel);
+        if (batch.getType() != null)
+            createBatchStatement.bindString(3, batch.getType());
+        else
+            createBatchStatement.bindNull(3);
+        createBatchStatement.bindString(4, MessageStorageHelper.serializeBatchParameters(batch));
+        createBatchStatement.bindLong(5, messageId);
+        long ret = createBatchStatement.executeInsert();
+        createBatchStatement.clearBindings();
+        if (ret == -1) {
+            updateBatchStatement.bindBlob(1, uuid);
+            updateBatchStatement.bindString(2, channel);
+            updateBatchStatement.bindLong(3, messageId);
+            updateBatchStatement.executeUpdateDelete();
+            updateBatchStatement.clearBindings();
+        }
+    }
+
     public MessageQueryResult getMessages(String channel, int id, int offset, int limit,
                                           boolean newer,
                                           MessageFilterOptions filterOptions) {
+        return getMessages(channel, id, false, offset, limit, newer, filterOptions, null);
+    }
+
+    /**
+     * @param inclusive whether the message with the specified id should be returned as well
+     * @param sender only return the messages of this sender, or null for all messages
+     */
+    public MessageQueryResult getMessages(String channel, int id, boolean inclusive, int offset,
+                                          int limit, boolean newer,
+                                          MessageFilterOptions filterOptions, UUID sender) {
         synchronized (this) {
+            if (sender != null)
+                prepareSenderIndex();
             if (!requestRead())
                 return null;
 
-            String tableName = MessagesContract.MessageEntry.getEscapedTableName(channel);
-            StringBuilder query = new StringBuilder();
-            query.append("SELECT " +
-                    MessagesContract.MessageEntry._ID + "," +
-                    MessagesContract.MessageEntry.COLUMN_NAME_SENDER_DATA + "," +
-                    MessagesContract.MessageEntry.COLUMN_NAME_SENDER_UUID + "," +
-                    MessagesContract.MessageEntry.COLUMN_NAME_DATE + "," +
-                    MessagesContract.MessageEntry.COLUMN_NAME_TEXT + "," +
-                    MessagesContract.MessageEntry.COLUMN_NAME_TYPE + "," +
-                    MessagesContract.MessageEntry.COLUMN_NAME_EXTRA_DATA +
-                    " FROM ");
-            query.append(tableName);
-            query.append(" WHERE " + MessagesContract.MessageEntry.COLUMN_NAME_TYPE + "!=" +
-                    MessageStorageHelper.TYPE_DELETED);
-            if (id != -1) {
-                query.append(" AND " + MessagesContract.MessageEntry._ID);
-                query.append(newer ? '>' : '<');
-                query.append(id);
-            }
-            if (filterOptions != null) {
-                appendFilterQuery(query, filterOptions, true);
-            }
-            query.append(" ORDER BY " + MessagesContract.MessageEntry._ID);
-            query.append(newer ? " ASC" : " DESC");
+            StringBuilder query = new StringBuilder(buildMessageQuery(channel, id, inclusive,
+                    newer, filterOptions, sender));
             query.append(" LIMIT ");
             query.append(limit);
             if (offset != 0) {
@@ -202,21 +649,14 @@ public class SQLiteMessageStorageFile {
             try {
                 Cursor cursor = database.rawQuery(query.toString(), null);
                 List<MessageInfo> ret = new ArrayList<>(cursor.getCount());
-                List<MessageId> retIds = new ArrayList<>(cursor.getCount());
+                MessageIdList retIds = new MessageIdList(cursor.getCount());
                 if (!newer) {
                     cursor.moveToLast();
                     cursor.moveToNext();
                 }
                 while (newer ? cursor.moveToNext() : cursor.moveToPrevious()) {
-                    byte[] uuidBlob = cursor.getBlob(2);
-                    ret.add(MessageStorageHelper.deserializeMessage(
-                            uuidBlob != null ? MessageStorageHelper.deserializeSenderInfo(cursor.getString(1), MessageStorageHelper.bytesToUUID(uuidBlob)) : null,
-                            new Date(cursor.getLong(3)),
-                            cursor.getString(4),
-                            cursor.getInt(5),
-                            cursor.getString(6)
-                    ));
-                    retIds.add(new SQLiteMessageStorageApi.MyMessageId(key, cursor.getInt(0)));
+                    ret.add(readMessage(cursor, channel));
+                    retIds.add(key, cursor.getInt(0));
                 }
                 int after = cursor.moveToLast() ? cursor.getInt(0) : -1;
                 cursor.close();
@@ -227,61 +667,577 @@ public class SQLiteMessageStorageFile {
         }
     }
 
+    /**
+     * Runs a single chunk query for a MessageCursor. The rows are returned in the iteration
+     * order (see buildMessageQuery).
+     * @return the cursor or null if the channel doesn't have any messages in this file
+     */
+    Cursor queryMessageChunk(String channel, int afterId, int limit, boolean newer,
+                             MessageFilterOptions filterOptions) {
+        synchronized (this) {
+            if (!requestRead())
+                return null;
+            try {
+                Cursor cursor = database.rawQuery(buildMessageQuery(channel, afterId, false,
+                        newer, filterOptions, null) + " LIMIT " + limit, null);
+                cursor.getCount(); // fill the window while we hold the lock
+                return cursor;
+            } catch (SQLiteException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Upgrades the file if it was created before the channels had a sender index, so that the
+     * sender queries don't have to scan the channel tables. As with upgrade(), this is skipped
+     * while anybody else holds a reference to the file; the query then scans the tables this
+     * time, and the background upgrade gets to the file later.
+     * @return whether the channels have the sender index
+     */
+    synchronized boolean prepareSenderIndex() {
+        if (!requestRead())
+            return false;
+        if (database.getVersion() >= MessageFileMigrator.VERSION_SENDER_INDEX)
+            return true;
+        return upgrade();
+    }
+
+    /**
+     * Queries the messages of the specified sender in all the channels of this file, newest
+     * first (by date, then channel name, then descending id), and appends them to the lists.
+     * @param after the position of the last message of the previous page in this file, or null
+     * @return the number of added messages
+     */
+    int getSenderMessages(UUID sender, SenderMessagePosition after, int limit,
+                          List<MessageInfo> messages, List<String> messageChannels,
+                          MessageIdList messageIds) {
+        synchronized (this) {
+            prepareSenderIndex();
+            if (!requestRead())
+                return 0;
+            List<String> channels = getChannels();
+            Collections.sort(channels);
+            List<SenderMessageRow> rows = new ArrayList<>();
+            // SQLite limits the number of terms in a compound select
+            for (int start = 0; start < channels.size(); start += MAX_COMPOUND_SELECT_CHANNELS) {
+                int end = Math.min(start + MAX_COMPOUND_SELECT_CHANNELS, channels.size());
+                StringBuilder query = new StringBuilder();
+                for (int i = start; i < end; i++) {
+                    if (i > start)
+                        query.append(" UNION ALL ");
+                    appendSenderChannelQuery(query, channels.get(i), i, sender, after);
+                }
+                query.append(" ORDER BY " + MessagesContract.MessageEntry.COLUMN_NAME_DATE +
+                        " DESC,c ASC," + MessagesContract.MessageEntry._ID + " DESC LIMIT ");
+                query.append(limit);
+                try {
+                    Cursor cursor = database.rawQuery(query.toString(), null);
+                    while (cursor.moveToNext()) {
+                        String channel = channels.get(cursor.getInt(7));
+                        rows.add(new SenderMessageRow(readMessage(cursor, channel), channel,
+                                cursor.getInt(0), cursor.getLong(3), cursor.getInt(7)));
+                    }
+                    cursor.close();
+                } catch (SQLiteException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (channels.size() > MAX_COMPOUND_SELECT_CHANNELS) {
+                Collections.sort(rows, (a, b) -> {
+                    if (a.date != b.date)
+                        return a.date > b.date ? -1 : 1;
+                    if (a.channelIndex != b.channelIndex)
+                        return a.channelIndex < b.channelIndex ? -1 : 1;
+                    return Integer.compare(b.id, a.id);
+                });
+            }
+            int count = Math.min(rows.size(), limit);
+            for (int i = 0; i < count; i++) {
+                SenderMessageRow row = rows.get(i);
+                messages.add(row.message);
+                messageChannels.add(row.channel);
+                messageIds.add(key, row.id);
+            }
+            return count;
+        }
+    }
+
+    private void appendSenderChannelQuery(StringBuilder query, String channel, int channelIndex,
+                                          UUID sender, SenderMessagePosition after) {
+        query.append("SELECT " + MESSAGE_COLUMNS + ",");
+        query.append(channelIndex);
+        query.append(" AS c FROM ");
+        query.append(MessagesContract.MessageEntry.getEscapedTableName(channel));
+        query.append(" WHERE " + MessagesContract.MessageEntry.COLUMN_NAME_SENDER_UUID + "=");
+        query.append(MessageStorageHelper.uuidToHexLiteral(sender));
+        query.append(" AND " + MessagesContract.MessageEntry.COLUMN_NAME_TYPE + "!=" +
+                MessageStorageHelper.TYPE_DELETED);
+        if (after == null)
+            return;
+        int cmp = channel.compareTo(after.channel);
+        String date = MessagesContract.MessageEntry.COLUMN_NAME_DATE;
+        if (cmp > 0) {
+            query.append(" AND " + date + "<=").append(after.date);
+        } else if (cmp == 0) {
+            query.append(" AND (" + date + "<").append(after.date).append(" OR (" + date + "=")
+                    .append(after.date).append(" AND " + MessagesContract.MessageEntry._ID + "<")
+                    .append(after.id).append("))");
+        } else {
+            query.append(" AND " + date + "<").append(after.date);
+        }
+    }
+
+    /**
+     * The position of a message in the newest first ordering used by getSenderMessages.
+     */
+    static class SenderMessagePosition {
+
+        final long date;
+        final String channel;
+        final int id;
+
+        SenderMessagePosition(long date, String channel, int id) {
+            this.date = date;
+            this.channel = channel;
+            this.id = id;
+        }
+
+    }
+
+    private static class SenderMessageRow {
+
+        final MessageInfo message;
+        final String channel;
+        final int id;
+        final long date;
+        final int channelIndex;
+
+        SenderMessageRow(MessageInfo message, String channel, int id, long date,
+                         int channelIndex) {
+            this.message = message;
+            this.channel = channel;
+            this.id = id;
+            this.date = date;
+            this.channelIndex = channelIndex;
+        }
+
+    }
+
+    /**
+     * Opens a forward-only cursor over the messages of the specified channel in this file. The
+     * caller must hold a reference to this file until the cursor is closed.
+     */
+    MessageCursor openMessageCursor(String channel, int afterId, boolean newer,
+                                    MessageFilterOptions filterOptions) {
+        return new MessageCursor(this, channel, afterId, newer, filterOptions);
+    }
+
+    long getKey() {
+        return key;
+    }
+
+    /**
+     * Creates the table of the specified channel if needed and compiles the statements used by
+     * addMessage, so that the first message doesn't have to wait for it.
+     */
+    public void prepareChannel(String channel) {
+        synchronized (this) {
+            requireWrite();
+            getCreateMessageStatement(channel);
+            prepareStatsStatements();
+        }
+    }
+
+    private SQLiteStatement getCreateMessageStatement(String channel) {
+        SQLiteStatement statement = createMessageStatements.get(channel);
+        if (statement == null) {
+            String tableName = MessagesContract.MessageEntry.getEscapedTableName(channel);
+            database.execSQL(
+                    "CREATE TABLE IF NOT EXISTS " + tableName + " (" +
+                            MessagesContract.MessageEntry._ID + " INTEGER PRIMARY KEY," +
+                            MessagesContract.MessageEntry.COLUMN_NAME_SENDER_DATA + " TEXT," +
+                            MessagesContract.MessageEntry.COLUMN_NAME_SENDER_UUID + " BLOB," +
+                            MessagesContract.MessageEntry.COLUMN_NAME_DATE + " INTEGER," +
+                            MessagesContract.MessageEntry.COLUMN_NAME_TEXT + " TEXT," +
+                            MessagesContract.MessageEntry.COLUMN_NAME_TYPE + " INTEGER," +
+                            MessagesContract.MessageEntry.COLUMN_NAME_EXTRA_DATA + " TEXT" +
+                            ")");
+            MessageFileMigrator.createChannelIndexes(database, channel);
+            channels = null;
+            statement = database.compileStatement(
+                    "INSERT INTO " + tableName + " (" +
+                            MessagesContract.MessageEntry.COLUMN_NAME_SENDER_DATA + "," +
+                            MessagesContract.MessageEntry.COLUMN_NAME_SENDER_UUID + "," +
+                            MessagesContract.MessageEntry.COLUMN_NAME_DATE + "," +
+                            MessagesContract.MessageEntry.COLUMN_NAME_TEXT + "," +
+                            MessagesContract.MessageEntry.COLUMN_NAME_TYPE + "," +
+                            MessagesContract.MessageEntry.COLUMN_NAME_EXTRA_DATA +
+                            ") VALUES (?1,?2,?3,?4,?5,?6)");
+            createMessageStatements.put(channel, statement);
+        }
+        return statement;
+    }
+
     public long addMessage(String channel, MessageInfo message) {
         synchronized (this) {
             requireWrite();
-            SQLiteStatement statement = createMessageStatements.get(channel);
-            if (statement == null) {
-                String tableName = MessagesContract.MessageEntry.getEscapedTableName(channel);
-                database.execSQL(
-                        "CREATE TABLE IF NOT EXISTS " + tableName + " (" +
-                                MessagesContract.MessageEntry._ID + " INTEGER PRIMARY KEY," +
-                                MessagesContract.MessageEntry.COLUMN_NAME_SENDER_DATA + " TEXT," +
-                                MessagesContract.MessageEntry.COLUMN_NAME_SENDER_UUID + " BLOB," +
-                                MessagesContract.MessageEntry.COLUMN_NAME_DATE + " INTEGER," +
-                                MessagesContract.MessageEntry.COLUMN_NAME_TEXT + " TEXT," +
-                                MessagesContract.MessageEntry.COLUMN_NAME_TYPE + " INTEGER," +
-                                MessagesContract.MessageEntry.COLUMN_NAME_EXTRA_DATA + " TEXT" +
-                                ")");
-                statement = database.compileStatement(
-                        "INSERT INTO " + tableName + " (" +
-                                MessagesContract.MessageEntry.COLUMN_NAME_SENDER_DATA + "," +
-                                MessagesContract.MessageEntry.COLUMN_NAME_SENDER_UUID + "," +
-                                MessagesContract.MessageEntry.COLUMN_NAME_DATE + "," +
-                                MessagesContract.MessageEntry.COLUMN_NAME_TEXT + "," +
-                                MessagesContract.MessageEntry.COLUMN_NAME_TYPE + "," +
-                                MessagesContract.MessageEntry.COLUMN_NAME_EXTRA_DATA +
-                                ") VALUES (?1,?2,?3,?4,?5,?6)");
-                createMessageStatements.put(tableName, statement);
+            SQLiteStatement statement = getCreateMessageStatement(channel);
+            database.beginTransaction();
+            try {
+                long ret = insertMessage(statement, channel, message);
+                database.setTransactionSuccessful();
+                return ret;
+            } finally {
+                database.endTransaction();
             }
-            if (message.getSender() != null) {
-                statement.bindString(1, MessageStorageHelper.serializeSenderInfo(message.getSender()));
-                statement.bindBlob(2, MessageStorageHelper.uuidToBytes(message.getSender().getUserUUID()));
-            } else {
-                statement.bindNull(1);
-                statement.bindNull(2);
+        }
+    }
+
+    /**
+     * Inserts the message along with its batch membership and aggregate updates. Must be called
+     * in a transaction, so that they are all committed together.
+     */
+    private long insertMessage(SQLiteStatement statement, String channel, MessageInfo message) {
+        SenderInfoCache.Entry sender = null;
+        if (message.getSender() != null) {
+            sender = senderInfoCache.get(message.getSender());
+            statement.bindString(1, sender.serialized);
+            statement.bindBlob(2, sender.uuidBytes);
+        } else {
+            statement.bindNull(1);
+            statement.bindNull(2);
+        }
+        long date = message.getDate().getTime();
+        int type = message.getType().asInt();
+        statement.bindLong(3, date);
+        if (message.getMessage() == null)
+            statement.bindNull(4);
+        else
+            statement.bindString(4, message.getMessage());
+        statement.bindLong(5, type);
+        statement.bindString(6, MessageStorageHelper.serializeExtraData(message));
+        long ret = statement.executeInsert();
+        statement.clearBindings();
+        if (message.getBatch() != null)
+            addBatchMember(channel, message.getBatch(), ret);
+        updateStats(channel, date, type, sender != null ? sender.uuidBytes : null,
+                sender != null ? message.getSender().getNick() : null, 1);
+        return ret;
+    }
+
+    private void prepareStatsStatements() {
+        if (updateHourlyStatsStatement == null) {
+            updateHourlyStatsStatement = database.compileStatement(
+                    "INSERT OR REPLACE INTO " + MessagesContract.HourlyStatsEntry.TABLE_NAME + " (" +
+                            MessagesContract.HourlyStatsEntry.COLUMN_NAME_CHANNEL + "," +
+                            MessagesContract.HourlyStatsEntry.COLUMN_NAME_DATE_ID + "," +
+                            MessagesContract.HourlyStatsEntry.COLUMN_NAME_HOUR + "," +
+                            MessagesContract.HourlyStatsEntry.COLUMN_NAME_TYPE + "," +
+                            MessagesContract.HourlyStatsEntry.COLUMN_NAME_COUNT +
+                            ") VALUES (?1,?2,?3,?4,MAX(COALESCE((SELECT " +
+                            MessagesContract.HourlyStatsEntry.COLUMN_NAME_COUNT + " FROM " +
+                            MessagesContract.HourlyStatsEntry.TABLE_NAME + " WHERE " +
+                            MessagesContract.HourlyStatsEntry.COLUMN_NAME_CHANNEL + "=?1 AND " +
+                            MessagesContract.HourlyStatsEntry.COLUMN_NAME_DATE_ID + "=?2 AND " +
+                            MessagesContract.HourlyStatsEntry.COLUMN_NAME_HOUR + "=?3 AND " +
+                            MessagesContract.HourlyStatsEntry.COLUMN_NAME_TYPE + "=?4),0)+?5,0))");
+            // counts are clamped at 0, as upgraded files may tombstone rows added before the
+            // tables existed; the nick is only bound when adding messages, so it tracks the
+            // latest one
+            updateSenderStatsStatement = database.compileStatement(
+                    "INSERT OR REPLACE INTO " + MessagesContract.SenderStatsEntry.TABLE_NAME + " (" +
+                            MessagesContract.SenderStatsEntry.COLUMN_NAME_CHANNEL + "," +
+                            MessagesContract.SenderStatsEntry.COLUMN_NAME_DATE_ID + "," +
+                            MessagesContract.SenderStatsEntry.COLUMN_NAME_SENDER_UUID + "," +
+                            MessagesContract.SenderStatsEntry.COLUMN_NAME_NICK + "," +
+                            MessagesContract.SenderStatsEntry.COLUMN_NAME_COUNT +
+                            ") SELECT ?1,?2,?3,COALESCE(?4,MAX(" +
+                            MessagesContract.SenderStatsEntry.COLUMN_NAME_NICK + ")),MAX(COALESCE(MAX(" +
+                            MessagesContract.SenderStatsEntry.COLUMN_NAME_COUNT + "),0)+?5,0) FROM " +
+                            MessagesContract.SenderStatsEntry.TABLE_NAME + " WHERE " +
+                            MessagesContract.SenderStatsEntry.COLUMN_NAME_CHANNEL + "=?1 AND " +
+                            MessagesContract.SenderStatsEntry.COLUMN_NAME_DATE_ID + "=?2 AND " +
+                            MessagesContract.SenderStatsEntry.COLUMN_NAME_SENDER_UUID + "=?3");
+        }
+    }
+
+    /**
+     * Marks the aggregates of this file as changed in the owner's summary, before they are
+     * actually changed. Only the first change after a roll up has to be persisted.
+     */
+    private void markStatsDirty() {
+        if (!statsDirty) {
+            owner.getStatsStore().markDirty(key);
+            statsDirty = true;
+        }
+    }
+
+    /**
+     * Both the day and the hour come from the message date, which doesn't have to be the day
+     * of the file (the file is picked by the time the message was received or imported).
+     */
+    private void updateStats(String channel, long date, int type, byte[] senderUuid,
+                             String nick, int delta) {
+        prepareStatsStatements();
+        markStatsDirty();
+        long dateId = dayCache.getDateIdentifier(date);
+        updateHourlyStatsStatement.bindString(1, channel);
+        updateHourlyStatsStatement.bindLong(2, dateId);
+        updateHourlyStatsStatement.bindLong(3, dayCache.getHourOfDay(date));
+        updateHourlyStatsStatement.bindLong(4, type);
+        updateHourlyStatsStatement.bindLong(5, delta);
+        updateHourlyStatsStatement.executeInsert();
+        updateHourlyStatsStatement.clearBindings();
+        if (senderUuid == null)
+            return;
+        updateSenderStatsStatement.bindString(1, channel);
+        updateSenderStatsStatement.bindLong(2, dateId);
+        updateSenderStatsStatement.bindBlob(3, senderUuid);
+        if (nick != null)
+            updateSenderStatsStatement.bindString(4, nick);
+        else
+            updateSenderStatsStatement.bindNull(4);
+        updateSenderStatsStatement.bindLong(5, delta);
+        updateSenderStatsStatement.executeInsert();
+        updateSenderStatsStatement.clearBindings();
+    }
+
+    /**
+     * Decrements the aggregates for the rows in the specified range that are about to be
+     * tombstoned.
+     */
+    private void removeStats(String tableName, String channel, long firstId, long lastId) {
+        Cursor cursor = database.rawQuery("SELECT " +
+                MessagesContract.MessageEntry.COLUMN_NAME_DATE + "," +
+                MessagesContract.MessageEntry.COLUMN_NAME_TYPE + "," +
+                MessagesContract.MessageEntry.COLUMN_NAME_SENDER_UUID +
+                " FROM " + tableName +
+                " WHERE " + MessagesContract.MessageEntry._ID + ">=" + firstId + " AND " +
+                MessagesContract.MessageEntry._ID + "<=" + lastId + " AND " +
+                MessagesContract.MessageEntry.COLUMN_NAME_TYPE + "!=" +
+                MessageStorageHelper.TYPE_DELETED, null);
+        try {
+            while (cursor.moveToNext())
+                updateStats(channel, cursor.getLong(0), cursor.getInt(1), cursor.getBlob(2),
+                        null, -1);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Copies the aggregate tables of this file into the summary store. Files which don't have
+     * the current aggregate tables yet are stored without any rows, they are marked dirty again
+     * when they are upgraded.
+     */
+    synchronized void rollUpStats(ChannelStatsStore store) {
+        statsDirty = false;
+        if (!requestRead()) {
+            store.replaceFile(key, null, null);
+            return;
+        }
+        Cursor hourly = null;
+        Cursor senders = null;
+        try {
+            hourly = database.rawQuery("SELECT " +
+                    MessagesContract.HourlyStatsEntry.COLUMN_NAME_CHANNEL + "," +
+                    MessagesContract.HourlyStatsEntry.COLUMN_NAME_DATE_ID + "," +
+                    MessagesContract.HourlyStatsEntry.COLUMN_NAME_HOUR + "," +
+                    MessagesContract.HourlyStatsEntry.COLUMN_NAME_TYPE + "," +
+                    MessagesContract.HourlyStatsEntry.COLUMN_NAME_COUNT +
+                    " FROM " + MessagesContract.HourlyStatsEntry.TABLE_NAME +
+                    " WHERE " + MessagesContract.HourlyStatsEntry.COLUMN_NAME_COUNT + ">0", null);
+            senders = database.rawQuery("SELECT " +
+                    MessagesContract.SenderStatsEntry.COLUMN_NAME_CHANNEL + "," +
+                    MessagesContract.SenderStatsEntry.COLUMN_NAME_DATE_ID + "," +
+                    MessagesContract.SenderStatsEntry.COLUMN_NAME_SENDER_UUID + "," +
+                    MessagesContract.SenderStatsEntry.COLUMN_NAME_NICK + "," +
+                    MessagesContract.SenderStatsEntry.COLUMN_NAME_COUNT +
+                    " FROM " + MessagesContract.SenderStatsEntry.TABLE_NAME +
+                    " WHERE " + MessagesContract.SenderStatsEntry.COLUMN_NAME_COUNT + ">0", null);
+        } catch (SQLiteException e) {
+            // files created before the aggregate tables were keyed by day
+            if (hourly != null)
+                hourly.close();
+            hourly = null;
+        }
+        try {
+            store.replaceFile(key, hourly, senders);
+        } finally {
+            if (hourly != null)
+                hourly.close();
+            if (senders != null)
+                senders.close();
+        }
+    }
+
+    /**
+     * Adds the specified messages in a single transaction. If any of them is older than the
+     * messages stored before it, the channel is read ordered by date from then on.
+     */
+    public void addMessages(String channel, List<MessageInfo> messages) {
+        synchronized (this) {
+            requireWrite();
+            SQLiteStatement statement = getCreateMessageStatement(channel);
+            database.beginTransaction();
+            try {
+                if (!isDateOrdered(channel) && isOutOfOrder(channel, messages)) {
+                    database.execSQL("INSERT OR IGNORE INTO " +
+                            MessagesContract.DateOrderedChannelEntry.TABLE_NAME + " (" +
+                            MessagesContract.DateOrderedChannelEntry.COLUMN_NAME_CHANNEL +
+                            ") VALUES (?)", new Object[]{channel});
+                    dateOrderedChannels = null; // reloaded after the commit
+                }
+                for (MessageInfo message : messages)
+                    insertMessage(statement, channel, message);
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+        }
+    }
+
+    private static String getNick(String senderData) {
+        MessageSenderInfo sender = MessageStorageHelper.deserializeSenderInfo(senderData, null);
+        return sender != null ? sender.getNick() : null;
+    }
+
+    /**
+     * Checks whether a message with the exact same date, type, text and sender nick is stored in
+     * this file.
+     */
+    public synchronized boolean containsMessage(String channel, long date, int type, String text,
+                                                String nick) {
+        if (!requestRead())
+            return false;
+        String query = "SELECT " + MessagesContract.MessageEntry.COLUMN_NAME_SENDER_DATA +
+                " FROM " + MessagesContract.MessageEntry.getEscapedTableName(channel) +
+                " WHERE " + MessagesContract.MessageEntry.COLUMN_NAME_DATE + "=?1 AND " +
+                MessagesContract.MessageEntry.COLUMN_NAME_TYPE + "=?2 AND " +
+                MessagesContract.MessageEntry.COLUMN_NAME_TEXT +
+                (text != null ? "=?3" : " IS NULL");
+        String[] args = text != null ?
+                new String[]{String.valueOf(date), String.valueOf(type), text} :
+                new String[]{String.valueOf(date), String.valueOf(type)};
+        try {
+            Cursor cursor = database.rawQuery(query, args);
+            boolean ret = false;
+            while (!ret && cursor.moveToNext()) {
+                String n = getNick(cursor.getString(0));
+                ret = (n == null ? nick == null : n.equals(nick));
             }
-            statement.bindLong(3, message.getDate().getTime());
-            if (message.getMessage() == null)
-                statement.bindNull(4);
-            else
-                statement.bindString(4, message.getMessage());
-            statement.bindLong(5, message.getType().asInt());
-            statement.bindString(6, MessageStorageHelper.serializeExtraData(message));
-            long ret = statement.executeInsert();
-            statement.clearBindings();
+            cursor.close();
             return ret;
+        } catch (SQLiteException e) {
+            return false;
         }
     }
 
+    /**
+     * Adds the fingerprints of the messages of the specified channel stored since the specified
+     * date to the deduplication filter.
+     */
+    synchronized void addFingerprints(String channel, long since,
+                                      MessageDeduplicator.ChannelFilter filter) {
+        if (!requestRead())
+            return;
+        try {
+            Cursor cursor = database.rawQuery("SELECT " +
+                    MessagesContract.MessageEntry.COLUMN_NAME_SENDER_DATA + "," +
+                    MessagesContract.MessageEntry.COLUMN_NAME_DATE + "," +
+                    MessagesContract.MessageEntry.COLUMN_NAME_TYPE + "," +
+                    MessagesContract.MessageEntry.COLUMN_NAME_TEXT +
+                    " FROM " + MessagesContract.MessageEntry.getEscapedTableName(channel) +
+                    " WHERE " + MessagesContract.MessageEntry.COLUMN_NAME_DATE + ">=" + since +
+                    " AND " + MessagesContract.MessageEntry.COLUMN_NAME_TYPE + "!=" +
+                    MessageStorageHelper.TYPE_DELETED, null);
+            while (cursor.moveToNext())
+                filter.add(MessageDeduplicator.fingerprint(getNick(cursor.getString(0)),
+                        cursor.getLong(1), cursor.getInt(2), cursor.getString(3)));
+            cursor.close();
+        } catch (SQLiteException ignored) {
+        }
+    }
+
+    public synchronized boolean hasChannel(String channel) {
+        if (!requestRead())
+            return false;
+        Cursor cursor = database.rawQuery("SELECT 1 FROM sqlite_master WHERE type='table' AND name=?",
+                new String[]{MessagesContract.MessageEntry.TABLE_NAME_PREFIX + channel});
+        boolean ret = cursor.moveToFirst();
+        cursor.close();
+        return ret;
+    }
+
+    /**
+     * Removes all the messages of the specified channel from this file. The space is only given
+     * back to the file system by a vacuum() call afterwards.
+     * @return whether the file had any messages of the channel
+     */
+    public synchronized boolean removeChannel(String channel) {
+        if (!hasChannel(channel))
+            return false;
+        requireWrite();
+        markStatsDirty();
+        SQLiteStatement statement = createMessageStatements.remove(channel);
+        if (statement != null)
+            statement.close();
+        database.execSQL("DROP TABLE IF EXISTS " +
+                MessagesContract.MessageEntry.getEscapedTableName(channel));
+        database.execSQL("DELETE FROM " + MessagesContract.CompressedBlockEntry.TABLE_NAME +
+                " WHERE " + MessagesContract.CompressedBlockEntry.COLUMN_NAME_CHANNEL + "=?",
+                new Object[]{channel});
+        database.execSQL("DELETE FROM " + MessagesContract.CompressionDictionaryEntry.TABLE_NAME +
+                " WHERE " + MessagesContract.CompressionDictionaryEntry.COLUMN_NAME_CHANNEL + "=?",
+                new Object[]{channel});
+        database.execSQL("DELETE FROM " + MessagesContract.HourlyStatsEntry.TABLE_NAME +
+                " WHERE " + MessagesContract.HourlyStatsEntry.COLUMN_NAME_CHANNEL + "=?",
+                new Object[]{channel});
+        database.execSQL("DELETE FROM " + MessagesContract.SenderStatsEntry.TABLE_NAME +
+                " WHERE " + MessagesContract.SenderStatsEntry.COLUMN_NAME_CHANNEL + "=?",
+                new Object[]{channel});
+        database.execSQL("DELETE FROM " + MessagesContract.DateOrderedChannelEntry.TABLE_NAME +
+                " WHERE " + MessagesContract.DateOrderedChannelEntry.COLUMN_NAME_CHANNEL + "=?",
+                new Object[]{channel});
+        dateOrderedChannels = null;
+        MessageTextCodec codec = textCodecs.remove(channel);
+        if (codec != null)
+            codec.close();
+        compressedBlockCache.clear();
+        channels = null;
+        return true;
+    }
+
+    /**
+     * Rebuilds the file to release the space of removed data. The file's lock is only held while
+     * the database is opened, the VACUUM itself can take long and must not block the other users
+     * of the file any more than SQLite itself does. The caller must hold a reference to the file.
+     */
+    void vacuum() {
+        SQLiteDatabase database;
+        synchronized (this) {
+            requireWrite();
+            database = this.database;
+        }
+        database.execSQL("VACUUM");
+    }
+
     public synchronized void removeMessage(String channel, long id) {
         requireWrite();
         String tableName = MessagesContract.MessageEntry.getEscapedTableName(channel);
-        database.execSQL("UPDATE " + tableName + " SET " +
-                MessagesContract.MessageEntry.COLUMN_NAME_TYPE + "=" +
-                    MessageStorageHelper.TYPE_DELETED +
-                " WHERE " +
-                MessagesContract.MessageEntry._ID + "=?", new String[]{String.valueOf(id)});
+        database.beginTransaction();
+        try {
+            removeStats(tableName, channel, id, id);
+            database.execSQL("UPDATE " + tableName + " SET " +
+                    MessagesContract.MessageEntry.COLUMN_NAME_TYPE + "=" +
+                        MessageStorageHelper.TYPE_DELETED +
+                    " WHERE " +
+                    MessagesContract.MessageEntry._ID + "=?", new String[]{String.valueOf(id)});
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
     }
 
     public synchronized void removeMessageRange(String channel, long firstId, long lastId) {
@@ -291,13 +1247,20 @@ public class SQLiteMessageStorageFile {
         }
         requireWrite();
         String tableName = MessagesContract.MessageEntry.getEscapedTableName(channel);
-        database.execSQL("UPDATE " + tableName + " SET " +
-                MessagesContract.MessageEntry.COLUMN_NAME_TYPE + "=" +
-                    MessageStorageHelper.TYPE_DELETED +
-                " WHERE " +
-                MessagesContract.MessageEntry._ID + ">=? AND " +
-                MessagesContract.MessageEntry._ID + "<=?",
-                new String[]{String.valueOf(firstId), String.valueOf(lastId)});
+        database.beginTransaction();
+        try {
+            removeStats(tableName, channel, firstId, lastId);
+            database.execSQL("UPDATE " + tableName + " SET " +
+                    MessagesContract.MessageEntry.COLUMN_NAME_TYPE + "=" +
+                        MessageStorageHelper.TYPE_DELETED +
+                    " WHERE " +
+                    MessagesContract.MessageEntry._ID + ">=? AND " +
+                    MessagesContract.MessageEntry._ID + "<=?",
+                    new String[]{String.valueOf(firstId), String.valueOf(lastId)});
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
     }
 
 }
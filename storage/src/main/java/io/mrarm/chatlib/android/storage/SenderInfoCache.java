@@ -0,0 +1,77 @@
+package io.mrarm.chatlib.android.storage;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import io.mrarm.chatlib.dto.MessageSenderInfo;
+import io.mrarm.chatlib.dto.NickPrefixList;
+
+/**
+ * Caches the serialized form of recently seen senders, so that storing a message from someone
+ * who has already spoken recently doesn't need to build the sender string and the UUID blob
+ * again. Not thread safe.
+ */
+class SenderInfoCache {
+
+    private static final int DEFAULT_MAX_SIZE = 128;
+
+    private final Map<String, Entry> entries;
+
+    SenderInfoCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    SenderInfoCache(int maxSize) {
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    Entry get(MessageSenderInfo sender) {
+        Entry entry = entries.get(sender.getNick());
+        if (entry == null) {
+            entry = new Entry();
+            entries.put(sender.getNick(), entry);
+        } else if (entry.matches(sender)) {
+            return entry;
+        }
+        entry.set(sender);
+        return entry;
+    }
+
+    static class Entry {
+
+        private String user;
+        private String host;
+        private NickPrefixList prefixes;
+        private UUID uuid;
+
+        String serialized;
+        byte[] uuidBytes;
+
+        private static boolean equals(Object a, Object b) {
+            return a == b || (a != null && a.equals(b));
+        }
+
+        boolean matches(MessageSenderInfo sender) {
+            return equals(user, sender.getUser()) && equals(host, sender.getHost()) &&
+                    equals(prefixes, sender.getNickPrefixes()) &&
+                    equals(uuid, sender.getUserUUID());
+        }
+
+        void set(MessageSenderInfo sender) {
+            user = sender.getUser();
+            host = sender.getHost();
+            prefixes = sender.getNickPrefixes();
+            uuid = sender.getUserUUID();
+            serialized = MessageStorageHelper.serializeSenderInfo(sender);
+            uuidBytes = uuid != null ? MessageStorageHelper.uuidToBytes(uuid) : null;
+        }
+
+    }
+
+}
@@ -0,0 +1,50 @@
+package io.mrarm.chatlib.android.storage;
+
+import java.util.List;
+
+import io.mrarm.chatlib.dto.MessageId;
+import io.mrarm.chatlib.dto.MessageInfo;
+import io.mrarm.chatlib.dto.MessageListAfterIdentifier;
+
+/**
+ * A page of the messages sent by a single user, across all channels. Unlike MessageList, the
+ * messages are ordered newest first.
+ */
+public class SenderMessageList {
+
+    private final List<MessageInfo> messages;
+    private final List<String> channels;
+    private final List<MessageId> messageIds;
+    private final MessageListAfterIdentifier older;
+
+    SenderMessageList(List<MessageInfo> messages, List<String> channels,
+                      List<MessageId> messageIds, MessageListAfterIdentifier older) {
+        this.messages = messages;
+        this.channels = channels;
+        this.messageIds = messageIds;
+        this.older = older;
+    }
+
+    public List<MessageInfo> getMessages() {
+        return messages;
+    }
+
+    /**
+     * @return the channel of every message, in the same order as getMessages()
+     */
+    public List<String> getChannels() {
+        return channels;
+    }
+
+    public List<MessageId> getMessageIds() {
+        return messageIds;
+    }
+
+    /**
+     * @return the identifier of the next (older) page or null if there are no more messages
+     */
+    public MessageListAfterIdentifier getOlder() {
+        return older;
+    }
+
+}
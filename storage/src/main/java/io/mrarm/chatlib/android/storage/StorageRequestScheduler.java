@@ -0,0 +1,125 @@
+package io.mrarm.chatlib.android.storage;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.mrarm.chatlib.ResponseCallback;
+import io.mrarm.chatlib.ResponseErrorCallback;
+import io.mrarm.chatlib.util.SimpleRequestExecutor;
+
+/**
+ * Splits the storage requests between a single write lane, which keeps all the writes in order,
+ * and a small pool of read lanes. Reads are assigned to a lane by the daily file they start at,
+ * so that reads of different days run in parallel while reads of the same file stay serialized.
+ * Reads don't wait for the writes queued before them, so a read can miss a message whose write
+ * is still in the write lane.
+ */
+class StorageRequestScheduler {
+
+    static final int DEFAULT_READ_LANE_COUNT = 3;
+
+    private final Lane writeLane = new Lane();
+    private final Lane[] readLanes;
+    private final Object idleLock = new Object();
+    private boolean closed = false;
+
+    StorageRequestScheduler() {
+        this(DEFAULT_READ_LANE_COUNT);
+    }
+
+    StorageRequestScheduler(int readLaneCount) {
+        readLanes = new Lane[readLaneCount];
+        for (int i = 0; i < readLaneCount; i++)
+            readLanes[i] = new Lane();
+    }
+
+    <T> Future<T> queueWrite(Callable<T> task, ResponseCallback<T> callback,
+                             ResponseErrorCallback errorCallback) {
+        return writeLane.queue(task, callback, errorCallback);
+    }
+
+    int getReadLane(long fileDateId) {
+        return (int) (fileDateId % readLanes.length);
+    }
+
+    int getReadLaneCount() {
+        return readLanes.length;
+    }
+
+    <T> Future<T> queueRead(long fileDateId, Callable<T> task, ResponseCallback<T> callback,
+                            ResponseErrorCallback errorCallback) {
+        return readLanes[getReadLane(fileDateId)].queue(task, callback, errorCallback);
+    }
+
+    int getWriteQueueDepth() {
+        return writeLane.depth.get();
+    }
+
+    int getReadQueueDepth() {
+        int ret = 0;
+        for (Lane lane : readLanes)
+            ret += lane.depth.get();
+        return ret;
+    }
+
+    int getReadQueueDepth(int lane) {
+        return readLanes[lane].depth.get();
+    }
+
+    /**
+     * Waits until none of the lanes has any request queued or running.
+     * @return false if the scheduler has been closed in the meantime
+     */
+    boolean awaitIdle() throws InterruptedException {
+        synchronized (idleLock) {
+            while (!closed && (getWriteQueueDepth() > 0 || getReadQueueDepth() > 0))
+                idleLock.wait();
+            return !closed;
+        }
+    }
+
+    void open() {
+        synchronized (idleLock) {
+            closed = false;
+        }
+    }
+
+    /**
+     * Wakes up the awaitIdle callers and makes them fail. The requests which are already queued
+     * still run.
+     */
+    void close() {
+        synchronized (idleLock) {
+            closed = true;
+            idleLock.notifyAll();
+        }
+    }
+
+    private void onLaneIdle() {
+        synchronized (idleLock) {
+            idleLock.notifyAll();
+        }
+    }
+
+    private class Lane {
+
+        private final SimpleRequestExecutor executor = new SimpleRequestExecutor();
+        private final AtomicInteger depth = new AtomicInteger();
+
+        <T> Future<T> queue(Callable<T> task, ResponseCallback<T> callback,
+                            ResponseErrorCallback errorCallback) {
+            depth.incrementAndGet();
+            return executor.queue(() -> {
+                try {
+                    return task.call();
+                } finally {
+                    if (depth.decrementAndGet() == 0)
+                        onLaneIdle();
+                }
+            }, callback, errorCallback);
+        }
+
+    }
+
+}
@@ -0,0 +1,69 @@
+package io.mrarm.chatlib.android.storage.contract;
+
+public class ChannelStatsContract {
+
+    private ChannelStatsContract() { }
+
+    public static class FileEntry {
+
+        public static final String TABLE_NAME = "files";
+        public static final String COLUMN_NAME_FILE_DATE_ID = "file_date_id";
+        public static final String COLUMN_NAME_DIRTY = "dirty";
+
+        public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" +
+                COLUMN_NAME_FILE_DATE_ID + " INTEGER PRIMARY KEY," +
+                COLUMN_NAME_DIRTY + " INTEGER)";
+
+    }
+
+    public static class HourlyStatsEntry {
+
+        public static final String TABLE_NAME = "hourly_stats";
+        public static final String COLUMN_NAME_FILE_DATE_ID = "file_date_id";
+        public static final String COLUMN_NAME_CHANNEL = "channel";
+        public static final String COLUMN_NAME_DATE_ID = "date_id";
+        public static final String COLUMN_NAME_HOUR = "hour";
+        public static final String COLUMN_NAME_TYPE = "type";
+        public static final String COLUMN_NAME_COUNT = "count";
+
+        public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" +
+                COLUMN_NAME_FILE_DATE_ID + " INTEGER," +
+                COLUMN_NAME_CHANNEL + " TEXT," +
+                COLUMN_NAME_DATE_ID + " INTEGER," +
+                COLUMN_NAME_HOUR + " INTEGER," +
+                COLUMN_NAME_TYPE + " INTEGER," +
+                COLUMN_NAME_COUNT + " INTEGER," +
+                "PRIMARY KEY (" + COLUMN_NAME_CHANNEL + "," + COLUMN_NAME_DATE_ID + "," +
+                COLUMN_NAME_HOUR + "," + COLUMN_NAME_TYPE + "," + COLUMN_NAME_FILE_DATE_ID + "))";
+        public static final String CREATE_INDEX = "CREATE INDEX " + TABLE_NAME + "_file ON " +
+                TABLE_NAME + " (" + COLUMN_NAME_FILE_DATE_ID + ")";
+
+    }
+
+    public static class SenderStatsEntry {
+
+        public static final String TABLE_NAME = "sender_stats";
+        public static final String COLUMN_NAME_FILE_DATE_ID = "file_date_id";
+        public static final String COLUMN_NAME_CHANNEL = "channel";
+        public static final String COLUMN_NAME_DATE_ID = "date_id";
+        public static final String COLUMN_NAME_SENDER_UUID = "sender_uuid";
+        public static final String COLUMN_NAME_NICK = "nick";
+        public static final String COLUMN_NAME_COUNT = "count";
+
+        public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" +
+                COLUMN_NAME_FILE_DATE_ID + " INTEGER," +
+                COLUMN_NAME_CHANNEL + " TEXT," +
+                COLUMN_NAME_DATE_ID + " INTEGER," +
+                COLUMN_NAME_SENDER_UUID + " BLOB," +
+                COLUMN_NAME_NICK + " TEXT," +
+                COLUMN_NAME_COUNT + " INTEGER," +
+                "PRIMARY KEY (" + COLUMN_NAME_CHANNEL + "," + COLUMN_NAME_SENDER_UUID + "," +
+                COLUMN_NAME_DATE_ID + "," + COLUMN_NAME_FILE_DATE_ID + "))";
+        public static final String CREATE_INDEX = "CREATE INDEX " + TABLE_NAME + "_file ON " +
+                TABLE_NAME + " (" + COLUMN_NAME_FILE_DATE_ID + ")";
+        public static final String CREATE_DATE_INDEX = "CREATE INDEX " + TABLE_NAME + "_date ON " +
+                TABLE_NAME + " (" + COLUMN_NAME_CHANNEL + "," + COLUMN_NAME_DATE_ID + ")";
+
+    }
+
+}
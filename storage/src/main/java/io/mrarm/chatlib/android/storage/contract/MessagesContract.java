@@ -21,6 +21,113 @@ public class MessagesContract {
             return DatabaseUtils.sqlEscapeString(TABLE_NAME_PREFIX + channel);
         }
 
+        public static String getEscapedDateIndexName(String channel) {
+            return DatabaseUtils.sqlEscapeString(TABLE_NAME_PREFIX + channel + "_date");
+        }
+
+        public static String getEscapedSenderIndexName(String channel) {
+            return DatabaseUtils.sqlEscapeString(TABLE_NAME_PREFIX + channel + "_sender");
+        }
+
+    }
+
+    public static class BatchEntry implements BaseColumns {
+
+        public static final String TABLE_NAME = "batches";
+        public static final String COLUMN_NAME_UUID = "uuid";
+        public static final String COLUMN_NAME_CHANNEL = "channel";
+        public static final String COLUMN_NAME_TYPE = "type";
+        public static final String COLUMN_NAME_PARAMETERS = "parameters";
+        public static final String COLUMN_NAME_FIRST_MESSAGE_ID = "first_message_id";
+        public static final String COLUMN_NAME_LAST_MESSAGE_ID = "last_message_id";
+
+        public static final String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" +
+                _ID + " INTEGER PRIMARY KEY," +
+                COLUMN_NAME_UUID + " BLOB," +
+                COLUMN_NAME_CHANNEL + " TEXT," +
+                COLUMN_NAME_TYPE + " TEXT," +
+                COLUMN_NAME_PARAMETERS + " TEXT," +
+                COLUMN_NAME_FIRST_MESSAGE_ID + " INTEGER," +
+                COLUMN_NAME_LAST_MESSAGE_ID + " INTEGER)";
+
+        public static final String CREATE_INDEX = "CREATE UNIQUE INDEX IF NOT EXISTS " +
+                TABLE_NAME + "_uuid ON " + TABLE_NAME + " (" +
+                COLUMN_NAME_UUID + "," + COLUMN_NAME_CHANNEL + ")";
+
+    }
+
+    public static class CompressedBlockEntry implements BaseColumns {
+
+        public static final String TABLE_NAME = "compressed_blocks";
+        public static final String COLUMN_NAME_CHANNEL = "channel";
+        public static final String COLUMN_NAME_DATA = "data";
+
+        public static final String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" +
+                _ID + " INTEGER PRIMARY KEY," +
+                COLUMN_NAME_CHANNEL + " TEXT," +
+                COLUMN_NAME_DATA + " BLOB)";
+
+    }
+
+    public static class CompressionDictionaryEntry {
+
+        public static final String TABLE_NAME = "compression_dictionaries";
+        public static final String COLUMN_NAME_CHANNEL = "channel";
+        public static final String COLUMN_NAME_DICTIONARY = "dictionary";
+
+        public static final String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" +
+                COLUMN_NAME_CHANNEL + " TEXT PRIMARY KEY," +
+                COLUMN_NAME_DICTIONARY + " BLOB)";
+
+    }
+
+    public static class HourlyStatsEntry {
+
+        public static final String TABLE_NAME = "hourly_stats";
+        public static final String COLUMN_NAME_CHANNEL = "channel";
+        public static final String COLUMN_NAME_DATE_ID = "date_id";
+        public static final String COLUMN_NAME_HOUR = "hour";
+        public static final String COLUMN_NAME_TYPE = "type";
+        public static final String COLUMN_NAME_COUNT = "count";
+
+        public static final String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" +
+                COLUMN_NAME_CHANNEL + " TEXT," +
+                COLUMN_NAME_DATE_ID + " INTEGER," +
+                COLUMN_NAME_HOUR + " INTEGER," +
+                COLUMN_NAME_TYPE + " INTEGER," +
+                COLUMN_NAME_COUNT + " INTEGER," +
+                "PRIMARY KEY (" + COLUMN_NAME_CHANNEL + "," + COLUMN_NAME_DATE_ID + "," +
+                COLUMN_NAME_HOUR + "," + COLUMN_NAME_TYPE + "))";
+
+    }
+
+    public static class SenderStatsEntry {
+
+        public static final String TABLE_NAME = "sender_stats";
+        public static final String COLUMN_NAME_CHANNEL = "channel";
+        public static final String COLUMN_NAME_DATE_ID = "date_id";
+        public static final String COLUMN_NAME_SENDER_UUID = "sender_uuid";
+        public static final String COLUMN_NAME_NICK = "nick";
+        public static final String COLUMN_NAME_COUNT = "count";
+
+        public static final String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" +
+                COLUMN_NAME_CHANNEL + " TEXT," +
+                COLUMN_NAME_DATE_ID + " INTEGER," +
+                COLUMN_NAME_SENDER_UUID + " BLOB," +
+                COLUMN_NAME_NICK + " TEXT," +
+                COLUMN_NAME_COUNT + " INTEGER," +
+                "PRIMARY KEY (" + COLUMN_NAME_CHANNEL + "," + COLUMN_NAME_DATE_ID + "," +
+                COLUMN_NAME_SENDER_UUID + "))";
+
+    }
+
+    public static class DateOrderedChannelEntry {
+
+        public static final String TABLE_NAME = "date_ordered_channels";
+        public static final String COLUMN_NAME_CHANNEL = "channel";
+
+        public static final String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" +
+                COLUMN_NAME_CHANNEL + " TEXT PRIMARY KEY)";
 
     }
 
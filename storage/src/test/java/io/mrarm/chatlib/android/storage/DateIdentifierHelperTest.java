@@ -0,0 +1,144 @@
+package io.mrarm.chatlib.android.storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+public class DateIdentifierHelperTest {
+
+    private static final String[] TIME_ZONES = {"UTC", "Europe/Warsaw", "America/New_York",
+            "Pacific/Kiritimati", "Pacific/Pago_Pago"};
+
+    private TimeZone defaultTimeZone;
+
+    @Before
+    public void saveTimeZone() {
+        defaultTimeZone = TimeZone.getDefault();
+    }
+
+    @After
+    public void restoreTimeZone() {
+        TimeZone.setDefault(defaultTimeZone);
+    }
+
+    private static long getMillis(int year, int month, int day, int hour, int minute) {
+        Calendar c = Calendar.getInstance();
+        c.clear();
+        c.set(year, month - 1, day, hour, minute);
+        return c.getTimeInMillis();
+    }
+
+    private static void assertDate(int year, int month, int day, long dateId) {
+        assertEquals(year, DateIdentifierHelper.getYear(dateId));
+        assertEquals(month, DateIdentifierHelper.getMonth(dateId));
+        assertEquals(day, DateIdentifierHelper.getDay(dateId));
+    }
+
+    @Test
+    public void fieldsRoundTrip() {
+        for (int year : new int[]{1970, 1999, 2000, 2024, 2100}) {
+            for (int month = 1; month <= 12; month++) {
+                for (int day = 1; day <= 31; day++) {
+                    long dateId = DateIdentifierHelper.getDateIdentifier(year, month, day);
+                    assertDate(year, month, day, dateId);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void millisAcrossMonthAndYearBoundaries() {
+        int[][] boundaries = {
+                {2023, 12, 31, 2024, 1, 1},
+                {2024, 1, 31, 2024, 2, 1},
+                {2024, 2, 29, 2024, 3, 1},
+                {2023, 2, 28, 2023, 3, 1},
+                {2100, 2, 28, 2100, 3, 1},
+                {2000, 2, 29, 2000, 3, 1},
+                {1969, 12, 31, 1970, 1, 1},
+        };
+        for (String tz : TIME_ZONES) {
+            TimeZone.setDefault(TimeZone.getTimeZone(tz));
+            for (int[] b : boundaries) {
+                long lastDay = DateIdentifierHelper.getDateIdentifier(
+                        getMillis(b[0], b[1], b[2], 23, 59));
+                long firstDay = DateIdentifierHelper.getDateIdentifier(
+                        getMillis(b[3], b[4], b[5], 0, 0));
+                assertDate(b[0], b[1], b[2], lastDay);
+                assertDate(b[3], b[4], b[5], firstDay);
+                assertTrue(tz, firstDay > lastDay);
+            }
+        }
+    }
+
+    @Test
+    public void millisMatchCalendarForEveryDay() {
+        for (String tz : TIME_ZONES) {
+            TimeZone.setDefault(TimeZone.getTimeZone(tz));
+            Calendar c = Calendar.getInstance();
+            c.clear();
+            c.set(2019, Calendar.DECEMBER, 1, 12, 0);
+            long previous = -1;
+            for (int i = 0; i < 800; i++) {
+                long dateId = DateIdentifierHelper.getDateIdentifier(c.getTimeInMillis());
+                assertDate(c.get(Calendar.YEAR), c.get(Calendar.MONTH) + 1,
+                        c.get(Calendar.DAY_OF_MONTH), dateId);
+                assertTrue(dateId > previous);
+                previous = dateId;
+                c.add(Calendar.DATE, 1);
+            }
+        }
+    }
+
+    @Test
+    public void fileNameRoundTrip() {
+        long dateId = DateIdentifierHelper.getDateIdentifier(2024, 1, 5);
+        assertEquals("messages-2024-01-05.db", DateIdentifierHelper.getFileName(dateId));
+        assertEquals(dateId, DateIdentifierHelper.parseFileName("messages-2024-01-05.db"));
+        dateId = DateIdentifierHelper.getDateIdentifier(1999, 12, 31);
+        assertEquals(dateId, DateIdentifierHelper.parseFileName(
+                DateIdentifierHelper.getFileName(dateId)));
+    }
+
+    @Test
+    public void appendDate() {
+        StringBuilder b = new StringBuilder();
+        DateIdentifierHelper.appendDate(b, DateIdentifierHelper.getDateIdentifier(2024, 1, 5));
+        assertEquals("2024-01-05", b.toString());
+        b.setLength(0);
+        DateIdentifierHelper.appendDate(b, DateIdentifierHelper.getDateIdentifier(999, 12, 31));
+        assertEquals("0999-12-31", b.toString());
+    }
+
+    @Test
+    public void invalidFileNames() {
+        assertEquals(-1, DateIdentifierHelper.parseFileName("messages-2024-13-05.db"));
+        assertEquals(-1, DateIdentifierHelper.parseFileName("messages-2024-01-00.db"));
+        assertEquals(-1, DateIdentifierHelper.parseFileName("messages-2024-01-5.db"));
+        assertEquals(-1, DateIdentifierHelper.parseFileName("messages-2024_01-05.db"));
+        assertEquals(-1, DateIdentifierHelper.parseFileName("messages-2024-01-05.db-journal"));
+        assertEquals(-1, DateIdentifierHelper.parseFileName("messages-index.db"));
+    }
+
+    @Test
+    public void currentDayCacheAcrossMidnight() {
+        for (String tz : TIME_ZONES) {
+            TimeZone.setDefault(TimeZone.getTimeZone(tz));
+            DateIdentifierHelper.CurrentDayCache cache = new DateIdentifierHelper.CurrentDayCache();
+            long beforeMidnight = getMillis(2023, 12, 31, 23, 59);
+            long afterMidnight = getMillis(2024, 1, 1, 0, 1);
+            assertDate(2023, 12, 31, cache.getDateIdentifier(beforeMidnight));
+            assertEquals(23, cache.getHourOfDay(beforeMidnight));
+            assertDate(2024, 1, 1, cache.getDateIdentifier(afterMidnight));
+            assertEquals(0, cache.getHourOfDay(afterMidnight));
+            // going back in time must not return the cached day
+            assertDate(2023, 12, 31, cache.getDateIdentifier(beforeMidnight));
+        }
+    }
+
+}
@@ -0,0 +1,157 @@
+package io.mrarm.chatlib.android.storage;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MessageDeduplicatorTest {
+
+    private static final long WINDOW = 60 * 60 * 1000;
+
+    private static long[] createHashes(long seed, int count) {
+        Random random = new Random(seed);
+        long[] ret = new long[count];
+        for (int i = 0; i < count; i++)
+            ret[i] = MessageDeduplicator.fingerprint("nick" + random.nextInt(50),
+                    random.nextLong(), 0, "text " + random.nextInt());
+        return ret;
+    }
+
+    @Test
+    public void bloomFilterHasNoFalseNegatives() {
+        BloomFilter filter = new BloomFilter(1 << 16, 4);
+        long[] hashes = createHashes(1, 5000);
+        for (long h : hashes)
+            filter.add(h);
+        for (long h : hashes)
+            assertTrue(filter.mightContain(h));
+    }
+
+    @Test
+    public void bloomFilterFalsePositiveRate() {
+        BloomFilter filter = new BloomFilter(1 << 16, 4);
+        for (long h : createHashes(1, 5000))
+            filter.add(h);
+        int falsePositives = 0;
+        long[] others = createHashes(2, 10000);
+        for (long h : others) {
+            if (filter.mightContain(h))
+                falsePositives++;
+        }
+        // about 0.2% expected for 5000 entries in 64k bits with 4 probes
+        assertTrue(falsePositives < others.length / 100);
+    }
+
+    @Test
+    public void bloomFilterClear() {
+        BloomFilter filter = new BloomFilter(1 << 10, 4);
+        long[] hashes = createHashes(3, 100);
+        for (long h : hashes)
+            filter.add(h);
+        filter.clear();
+        for (long h : hashes)
+            assertFalse(filter.mightContain(h));
+    }
+
+    @Test
+    public void fingerprintDependsOnAllFields() {
+        long f = MessageDeduplicator.fingerprint("nick", 1000, 0, "text");
+        assertEquals(f, MessageDeduplicator.fingerprint("nick", 1000, 0, "text"));
+        assertNotEquals(f, MessageDeduplicator.fingerprint("nick2", 1000, 0, "text"));
+        assertNotEquals(f, MessageDeduplicator.fingerprint("nick", 1001, 0, "text"));
+        assertNotEquals(f, MessageDeduplicator.fingerprint("nick", 1000, 1, "text"));
+        assertNotEquals(f, MessageDeduplicator.fingerprint("nick", 1000, 0, "text2"));
+        assertNotEquals(f, MessageDeduplicator.fingerprint(null, 1000, 0, "text"));
+        assertNotEquals(f, MessageDeduplicator.fingerprint("nick", 1000, 0, null));
+        // the separators keep the nick and the text apart
+        assertNotEquals(MessageDeduplicator.fingerprint("ab", 0, 0, "c"),
+                MessageDeduplicator.fingerprint("a", 0, 0, "bc"));
+    }
+
+    @Test
+    public void channelFiltersAreSeparate() {
+        MessageDeduplicator deduplicator = new MessageDeduplicator(WINDOW);
+        assertNull(deduplicator.getChannelFilter("#a", 0));
+        MessageDeduplicator.ChannelFilter a = deduplicator.createChannelFilter("#a", 0);
+        MessageDeduplicator.ChannelFilter b = deduplicator.createChannelFilter("#b", 0);
+        a.add(42);
+        assertSame(a, deduplicator.getChannelFilter("#a", 0));
+        assertTrue(a.mightContain(42));
+        assertFalse(b.mightContain(42));
+        deduplicator.removeChannelFilter("#a");
+        assertNull(deduplicator.getChannelFilter("#a", 0));
+    }
+
+    @Test
+    public void generationRotation() {
+        MessageDeduplicator deduplicator = new MessageDeduplicator(WINDOW);
+        MessageDeduplicator.ChannelFilter filter = deduplicator.createChannelFilter("#a", 0);
+        long[] hashes = createHashes(4, 100);
+        for (long h : hashes)
+            filter.add(h);
+
+        // still in the current generation
+        deduplicator.getChannelFilter("#a", WINDOW - 1);
+        for (long h : hashes)
+            assertTrue(filter.mightContain(h));
+
+        // moved to the previous generation, which is still checked
+        deduplicator.getChannelFilter("#a", WINDOW);
+        for (long h : hashes)
+            assertTrue(filter.mightContain(h));
+        long newer = MessageDeduplicator.fingerprint("nick", WINDOW, 0, "newer");
+        filter.add(newer);
+
+        // the second rotation drops the oldest generation, but not the one after it
+        deduplicator.getChannelFilter("#a", WINDOW * 2);
+        int remaining = 0;
+        for (long h : hashes) {
+            if (filter.mightContain(h))
+                remaining++;
+        }
+        assertTrue(remaining < hashes.length / 10);
+        assertTrue(filter.mightContain(newer));
+
+        deduplicator.getChannelFilter("#a", WINDOW * 3);
+        assertFalse(filter.mightContain(newer));
+    }
+
+    @Test
+    public void replayJustAfterRotation() {
+        MessageDeduplicator deduplicator = new MessageDeduplicator(WINDOW);
+        MessageDeduplicator.ChannelFilter filter = deduplicator.createChannelFilter("#a", 0);
+        long stored = WINDOW / 10;
+        long fingerprint = MessageDeduplicator.fingerprint("nick", stored, 0, "text");
+        deduplicator.getChannelFilter("#a", stored);
+        filter.add(fingerprint);
+        // the filter is used by every incoming message, so it rotates as soon as it's due; the
+        // replay 0.9 windows later comes right after the rotation at WINDOW
+        for (long now = stored; now <= stored + WINDOW * 9 / 10; now += WINDOW / 100) {
+            deduplicator.getChannelFilter("#a", now);
+            assertTrue("missed at " + now, filter.mightContain(fingerprint));
+        }
+    }
+
+    @Test
+    public void filtersStartUnseeded() {
+        MessageDeduplicator deduplicator = new MessageDeduplicator(WINDOW);
+        MessageDeduplicator.ChannelFilter filter = deduplicator.createChannelFilter("#a", 0);
+        assertFalse(filter.isSeeded());
+        filter.setSeeded();
+        assertTrue(filter.isSeeded());
+    }
+
+    @Test
+    public void counters() {
+        MessageDeduplicator deduplicator = new MessageDeduplicator(WINDOW);
+        deduplicator.onSuppressed();
+        deduplicator.onSuppressed();
+        deduplicator.onFalsePositive();
+        assertEquals(2, deduplicator.getSuppressedCount());
+        assertEquals(1, deduplicator.getFalsePositiveCount());
+        assertEquals(WINDOW, deduplicator.getWindowMillis());
+    }
+
+}
@@ -0,0 +1,173 @@
+package io.mrarm.chatlib.android.storage;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import io.mrarm.chatlib.dto.MessageId;
+
+import static org.junit.Assert.*;
+
+public class MessageIdListTest {
+
+    private static MessageId id(long fileDateId, int rowId) {
+        return new SQLiteMessageStorageApi.MyMessageId(fileDateId, rowId);
+    }
+
+    private static void assertSameIds(List<MessageId> expected, MessageIdList list) {
+        assertEquals(expected.size(), list.size());
+        for (int i = 0; i < expected.size(); i++) {
+            SQLiteMessageStorageApi.MyMessageId e =
+                    (SQLiteMessageStorageApi.MyMessageId) expected.get(i);
+            assertEquals("index " + i, e, list.get(i));
+            assertEquals("index " + i, e.fileDateId, list.getFileDateId(i));
+            assertEquals("index " + i, e.id, list.getRowId(i));
+        }
+    }
+
+    private static void assertOutOfBounds(Runnable runnable) {
+        try {
+            runnable.run();
+            fail("IndexOutOfBoundsException expected");
+        } catch (IndexOutOfBoundsException ignored) {
+        }
+    }
+
+    @Test
+    public void prependAndAppendAcrossGrowth() {
+        MessageIdList list = new MessageIdList();
+        List<MessageId> expected = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            list.add(0, id(777000 - i, i));
+            expected.add(0, id(777000 - i, i));
+            list.add(778000 + i, -i); // negative row ids must survive the packing
+            expected.add(id(778000 + i, -i));
+        }
+        assertSameIds(expected, list);
+    }
+
+    @Test
+    public void addAllAtBothEnds() {
+        MessageIdList list = new MessageIdList();
+        List<MessageId> expected = new ArrayList<>();
+        for (int chunk = 0; chunk < 50; chunk++) {
+            MessageIdList older = new MessageIdList();
+            List<MessageId> newer = new ArrayList<>();
+            for (int i = 0; i < chunk; i++) {
+                older.add(chunk, i);
+                newer.add(id(1000 + chunk, i));
+            }
+            list.addAll(0, older);
+            expected.addAll(0, older);
+            list.addAll(newer);
+            expected.addAll(newer);
+        }
+        assertSameIds(expected, list);
+    }
+
+    @Test
+    public void addAllSelf() {
+        MessageIdList list = new MessageIdList();
+        list.add(1, 1);
+        list.add(2, 2);
+        list.addAll(list);
+        list.addAll(0, list);
+        list.addAll(2, list);
+        List<MessageId> pair = new ArrayList<>();
+        pair.add(id(1, 1));
+        pair.add(id(2, 2));
+        List<MessageId> expected = new ArrayList<>();
+        for (int i = 0; i < 8; i++)
+            expected.addAll(pair);
+        assertSameIds(expected, list);
+    }
+
+    @Test
+    public void insertSetAndRemove() {
+        MessageIdList list = new MessageIdList();
+        List<MessageId> expected = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            list.add(1, i);
+            expected.add(id(1, i));
+        }
+        list.add(5, id(2, 5));
+        expected.add(5, id(2, 5));
+        assertEquals(expected.set(3, id(3, 3)), list.set(3, id(3, 3)));
+        assertEquals(expected.remove(0), list.remove(0));
+        assertEquals(expected.remove(10), list.remove(10));
+        assertEquals(expected.remove(expected.size() - 1), list.remove(list.size() - 1));
+        assertSameIds(expected, list);
+        assertEquals(expected.indexOf(id(3, 3)), list.indexOf(id(3, 3)));
+        assertEquals(-1, list.indexOf(id(9, 9)));
+        list.clear();
+        assertEquals(0, list.size());
+        list.add(0, id(4, 4));
+        assertSameIds(Collections.singletonList(id(4, 4)), list);
+    }
+
+    @Test
+    public void getReturnsEqualIds() {
+        MessageIdList list = new MessageIdList();
+        MessageId added = id(5, 5);
+        list.add(1, 1);
+        list.add(added);
+        MessageId first = list.get(0);
+        assertEquals(first, list.get(0));
+        assertEquals(first.hashCode(), list.get(0).hashCode());
+        assertEquals(added, list.get(1));
+        assertEquals(added.hashCode(), list.get(1).hashCode());
+        list.add(0, id(0, 0));
+        for (int i = 0; i < 100; i++)
+            list.add(2, i); // grows the array
+        assertEquals(first, list.get(1));
+        assertEquals(added, list.get(2));
+        list.remove(0);
+        assertEquals(first, list.get(0));
+        assertEquals(first, new MessageIdList(list).get(0));
+    }
+
+    @Test
+    public void bounds() {
+        MessageIdList list = new MessageIdList();
+        assertOutOfBounds(() -> list.get(0));
+        assertOutOfBounds(() -> list.add(1, id(1, 1)));
+        list.add(1, 1);
+        list.add(2, 2);
+        assertOutOfBounds(() -> list.get(-1));
+        assertOutOfBounds(() -> list.get(2));
+        assertOutOfBounds(() -> list.getFileDateId(2));
+        assertOutOfBounds(() -> list.getRowId(-1));
+        assertOutOfBounds(() -> list.set(2, id(3, 3)));
+        assertOutOfBounds(() -> list.remove(2));
+        assertOutOfBounds(() -> list.add(3, id(3, 3)));
+        assertOutOfBounds(() -> list.addAll(-1, new MessageIdList()));
+        list.remove(0);
+        assertOutOfBounds(() -> list.get(1));
+        assertEquals(2, list.getFileDateId(0));
+    }
+
+    @Test
+    public void foreignIdsAreRejected() {
+        MessageIdList list = new MessageIdList();
+        list.add(1, 1);
+        MessageId foreign = new MessageId() { };
+        try {
+            list.add(0, foreign);
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+        List<MessageId> mixed = new ArrayList<>();
+        mixed.add(id(2, 2));
+        mixed.add(foreign);
+        try {
+            list.addAll(0, mixed);
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+        assertSameIds(Collections.singletonList(id(1, 1)), list);
+        assertFalse(list.contains(foreign));
+    }
+
+}
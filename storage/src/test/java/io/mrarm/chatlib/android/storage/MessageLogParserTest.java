@@ -0,0 +1,152 @@
+package io.mrarm.chatlib.android.storage;
+
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import io.mrarm.chatlib.dto.MessageInfo;
+import io.mrarm.chatlib.dto.NickChangeMessageInfo;
+
+import static org.junit.Assert.*;
+
+public class MessageLogParserTest {
+
+    private static final String LOG_DATE = "2024-03-05 00:00:00";
+
+    /**
+     * Every case is parsed by a new parser. All the lines but the last one only set up the state
+     * (such as the current day), the expectations apply to the last one. A null type means that
+     * the line must not produce a message.
+     */
+    private static final Object[][] CASES = {
+            // irssi
+            {MessageLogFormat.IRSSI, new String[]{
+                    "--- Log opened Tue Mar 05 10:00:00 2024",
+                    "10:15 <@alice> hello there"},
+                    MessageInfo.MessageType.NORMAL, "alice", "hello there", "2024-03-05 10:15:00"},
+            {MessageLogFormat.IRSSI, new String[]{
+                    "--- Log opened Tue Mar 05 10:00:00 2024",
+                    "--- Day changed Wed Mar 06 2024",
+                    "00:01:02 <bob> late"},
+                    MessageInfo.MessageType.NORMAL, "bob", "late", "2024-03-06 00:01:02"},
+            {MessageLogFormat.IRSSI, new String[]{
+                    "--- Log opened Tue Mar 05 10:00:00 2024",
+                    "10:16  * alice waves"},
+                    MessageInfo.MessageType.ME, "alice", "waves", "2024-03-05 10:16:00"},
+            {MessageLogFormat.IRSSI, new String[]{
+                    "--- Log opened Tue Mar 05 10:00:00 2024",
+                    "10:17 -!- carol [~c@example.com] has joined #test"},
+                    MessageInfo.MessageType.JOIN, "carol", null, "2024-03-05 10:17:00"},
+            {MessageLogFormat.IRSSI, new String[]{
+                    "--- Log opened Tue Mar 05 10:00:00 2024",
+                    "10:18 -!- carol [~c@example.com] has quit [Ping timeout]"},
+                    MessageInfo.MessageType.QUIT, "carol", "Ping timeout", "2024-03-05 10:18:00"},
+            {MessageLogFormat.IRSSI, new String[]{
+                    "--- Log opened Tue Mar 05 10:00:00 2024",
+                    "10:19 -!- alice is now known as alice_"},
+                    MessageInfo.MessageType.NICK_CHANGE, "alice", null, "2024-03-05 10:19:00"},
+            {MessageLogFormat.IRSSI, new String[]{
+                    "--- Log opened Tue Mar 05 10:00:00 2024",
+                    "10:20 -NickServ(NickServ@services.)- You are now identified"},
+                    MessageInfo.MessageType.NOTICE, "NickServ", "You are now identified",
+                    "2024-03-05 10:20:00"},
+            {MessageLogFormat.IRSSI, new String[]{"--- Log closed Tue Mar 05 11:00:00 2024"},
+                    null},
+            {MessageLogFormat.IRSSI, new String[]{"not a log line"}, null},
+
+            // WeeChat
+            {MessageLogFormat.WEECHAT, new String[]{"2024-03-05 10:15:30\t@alice\thello there"},
+                    MessageInfo.MessageType.NORMAL, "alice", "hello there", "2024-03-05 10:15:30"},
+            {MessageLogFormat.WEECHAT, new String[]{"2024-03-05 10:16:00\t *\talice waves"},
+                    MessageInfo.MessageType.ME, "alice", "waves", "2024-03-05 10:16:00"},
+            {MessageLogFormat.WEECHAT, new String[]{
+                    "2024-03-05 10:17:00\t-->\tcarol (~c@example.com) has joined #test"},
+                    MessageInfo.MessageType.JOIN, "carol", null, "2024-03-05 10:17:00"},
+            {MessageLogFormat.WEECHAT, new String[]{
+                    "2024-03-05 10:18:00\t<--\tcarol (~c@example.com) has left #test (bye)"},
+                    MessageInfo.MessageType.PART, "carol", "bye", "2024-03-05 10:18:00"},
+            {MessageLogFormat.WEECHAT, new String[]{
+                    "2024-03-05 10:19:00\t--\talice is now known as alice_"},
+                    MessageInfo.MessageType.NICK_CHANGE, "alice", null, "2024-03-05 10:19:00"},
+            {MessageLogFormat.WEECHAT, new String[]{"2024-03-05 10:20:00\t\tempty prefix"},
+                    null},
+            {MessageLogFormat.WEECHAT, new String[]{"2024-03-05\t10:20:00\tbroken"}, null},
+
+            // ZNC, the day comes from LOG_DATE
+            {MessageLogFormat.ZNC, new String[]{"[10:15:30] <alice> hello there"},
+                    MessageInfo.MessageType.NORMAL, "alice", "hello there", "2024-03-05 10:15:30"},
+            {MessageLogFormat.ZNC, new String[]{"[10:16:00] * alice waves"},
+                    MessageInfo.MessageType.ME, "alice", "waves", "2024-03-05 10:16:00"},
+            {MessageLogFormat.ZNC, new String[]{"[10:17:00] -NickServ- identified"},
+                    MessageInfo.MessageType.NOTICE, "NickServ", "identified",
+                    "2024-03-05 10:17:00"},
+            {MessageLogFormat.ZNC, new String[]{
+                    "[10:18:00] *** Joins: carol (~c@example.com)"},
+                    MessageInfo.MessageType.JOIN, "carol", null, "2024-03-05 10:18:00"},
+            {MessageLogFormat.ZNC, new String[]{
+                    "[10:19:00] *** Quits: carol (~c@example.com) (Ping timeout)"},
+                    MessageInfo.MessageType.QUIT, "carol", "Ping timeout", "2024-03-05 10:19:00"},
+            {MessageLogFormat.ZNC, new String[]{
+                    "[23:59:59] <alice> one",
+                    "[00:00:01] <alice> still the same log day"},
+                    MessageInfo.MessageType.NORMAL, "alice", "still the same log day",
+                    "2024-03-05 00:00:01"},
+            {MessageLogFormat.ZNC, new String[]{"[1015] <alice> no time"}, null},
+    };
+
+    private static Date parseDate(String str) throws ParseException {
+        return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US).parse(str);
+    }
+
+    @Test
+    public void parseLines() throws Exception {
+        for (int i = 0; i < CASES.length; i++) {
+            Object[] c = CASES[i];
+            MessageLogParser parser = MessageLogParser.create((MessageLogFormat) c[0],
+                    parseDate(LOG_DATE));
+            String[] lines = (String[]) c[1];
+            MessageInfo message = null;
+            for (String line : lines)
+                message = parser.parseLine(line);
+            String name = "case " + i + ": " + lines[lines.length - 1];
+            if (c[2] == null) {
+                assertNull(name, message);
+                continue;
+            }
+            assertNotNull(name, message);
+            assertEquals(name, c[2], message.getType());
+            assertEquals(name, c[3], message.getSender().getNick());
+            assertNotNull(name, message.getSender().getUserUUID());
+            assertEquals(name, c[4], message.getMessage());
+            assertEquals(name, parseDate((String) c[5]), message.getDate());
+        }
+    }
+
+    @Test
+    public void nickChangeTarget() throws Exception {
+        MessageLogParser parser = MessageLogParser.create(MessageLogFormat.WEECHAT, null);
+        MessageInfo message = parser.parseLine(
+                "2024-03-05 10:19:00\t--\talice is now known as alice_");
+        assertEquals("alice_", ((NickChangeMessageInfo) message).getNewNick());
+    }
+
+    @Test
+    public void senderUUIDsAreStable() throws Exception {
+        MessageLogParser a = MessageLogParser.create(MessageLogFormat.ZNC, parseDate(LOG_DATE));
+        MessageLogParser b = MessageLogParser.create(MessageLogFormat.ZNC, parseDate(LOG_DATE));
+        MessageInfo m1 = a.parseLine("[10:00:00] <\u017c\u00f3\u0142w> one");
+        MessageInfo m2 = b.parseLine("[11:00:00] <@\u017c\u00f3\u0142w> two");
+        MessageInfo m3 = b.parseLine("[11:00:00] <other> three");
+        assertEquals(m1.getSender().getUserUUID(), m2.getSender().getUserUUID());
+        assertNotEquals(m1.getSender().getUserUUID(), m3.getSender().getUserUUID());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zncRequiresLogDate() {
+        MessageLogParser.create(MessageLogFormat.ZNC, null);
+    }
+
+}
@@ -0,0 +1,104 @@
+package io.mrarm.chatlib.android.storage;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the compression ratio of compacted message blocks on a synthetic channel log and that
+ * every message decodes back to the original text and sender.
+ */
+public class MessageTextCodecBenchmark {
+
+    private static final int MESSAGE_COUNT = 20000;
+    private static final int BLOCK_SIZE = SQLiteMessageStorageFile.COMPRESSED_BLOCK_SIZE;
+    private static final double MIN_COMPRESSION_RATIO = 3.0;
+
+    private static final String[] WORDS = ("the a to and of is it in that you i for this on " +
+            "with be have not but what are can was so just if do my it's like no get there " +
+            "about know all yes one think they your should will from would build error kernel " +
+            "package install update version works problem config server client channel bot " +
+            "thanks hello anyone help please release branch commit merge patch test crash " +
+            "android linux windows network connection timeout").split(" ");
+
+    private static List<String> createTexts(Random random) {
+        List<String> ret = new ArrayList<>();
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            StringBuilder b = new StringBuilder();
+            int words = 3 + random.nextInt(15);
+            for (int j = 0; j < words; j++) {
+                if (j > 0)
+                    b.append(' ');
+                // roughly zipfian word choice
+                b.append(WORDS[(int) (WORDS.length * Math.pow(random.nextDouble(), 2))]);
+            }
+            ret.add(b.toString());
+        }
+        return ret;
+    }
+
+    private static List<String> createSenders(Random random) {
+        List<String> ret = new ArrayList<>();
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            int n = random.nextInt(40);
+            ret.add((n < 3 ? "@" : "") + " user" + n + "!~user" + n + "@host-" + n +
+                    ".example.net");
+        }
+        return ret;
+    }
+
+    @Test
+    public void compressionRatioAndRoundTrip() throws Exception {
+        Random random = new Random(1);
+        List<String> texts = createTexts(random);
+        List<String> senders = createSenders(random);
+        List<String> samples = new ArrayList<>(texts.subList(0, 1000));
+        samples.addAll(senders.subList(0, 1000));
+        MessageTextCodec codec = new MessageTextCodec(MessageTextCodec.trainDictionary(
+                samples, MessageTextCodec.MAX_DICTIONARY_SIZE));
+        try {
+            checkCodec(codec, texts, senders);
+        } finally {
+            codec.close();
+        }
+    }
+
+    private static void checkCodec(MessageTextCodec codec, List<String> texts,
+                                   List<String> senders) throws Exception {
+        Charset utf8 = Charset.forName("UTF-8");
+        long rawSize = 0, compressedSize = 0;
+        List<byte[]> blocks = new ArrayList<>();
+        int[] ids = new int[BLOCK_SIZE];
+        String[] blockSenders = new String[BLOCK_SIZE];
+        String[] blockTexts = new String[BLOCK_SIZE];
+        for (int start = 0; start < MESSAGE_COUNT; start += BLOCK_SIZE) {
+            int count = Math.min(BLOCK_SIZE, MESSAGE_COUNT - start);
+            for (int i = 0; i < count; i++) {
+                ids[i] = start + i + 1;
+                blockSenders[i] = senders.get(start + i);
+                blockTexts[i] = texts.get(start + i);
+                rawSize += blockSenders[i].getBytes(utf8).length +
+                        blockTexts[i].getBytes(utf8).length;
+            }
+            byte[] block = codec.encodeBlock(ids, blockSenders, blockTexts, count);
+            compressedSize += block.length;
+            blocks.add(block);
+        }
+
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            MessageTextCodec.Block block = codec.decodeBlock(blocks.get(i / BLOCK_SIZE));
+            int index = block.indexOf(i + 1);
+            assertEquals(texts.get(i), block.getText(index));
+            assertEquals(senders.get(i), block.getSenderData(index));
+        }
+
+        double ratio = (double) rawSize / compressedSize;
+        assertTrue("ratio " + ratio, ratio > MIN_COMPRESSION_RATIO);
+    }
+
+}